@@ -0,0 +1,138 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Berdal84.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.berdal84.mageek;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.plugin.ChannelSplitter;
+import ij.process.ImageProcessor;
+
+/**
+ * The slices of a channel of a serie, pointing at the planes of the serie's stack.
+ *
+ * Unlike ChannelSplitter.split(), no plane is copied: processors returned by
+ * getProcessor() wrap the pixel arrays of the serie's stack. Like ZProjector,
+ * only the slices of the first frame are considered.
+ */
+class ChannelView
+{
+    /* Stack of the serie */
+    private final ImageStack stack;
+    
+    /* Stack indices (1-based) of the slices of the channel */
+    private final int[] indices;
+    
+    /* True if the 16-bit pixels are signed (@see Calibration.isSigned16Bit()) */
+    private final boolean signed16Bit;
+
+    private ChannelView(ImageStack _stack, int[] _indices, boolean _signed16Bit)
+    {
+        stack = _stack;
+        indices = _indices;
+        signed16Bit = _signed16Bit;
+    }
+    
+    /**
+     * Create a view on each channel of a serie.
+     * RGB series are split in red, green and blue channels (like ChannelSplitter.split()),
+     * which copies their planes.
+     * @param _serie
+     * @return views indexed by channel
+     */
+    static ChannelView[] of(ImagePlus _serie)
+    {
+        if ( _serie.getType() == ImagePlus.COLOR_RGB )
+        {
+            ImagePlus[] allChannels = ChannelSplitter.split(_serie);
+            ChannelView[] result = new ChannelView[allChannels.length];
+            for (int channel = 0; channel < allChannels.length; channel++)
+            {
+                result[channel] = of(allChannels[channel])[0];
+            }
+            return result;
+        }
+        
+        // ImagePlus.getStack() is not thread safe, stack is shared by the views.
+        ImageStack stack = _serie.getStack();
+        boolean signed16Bit = _serie.getCalibration().isSigned16Bit();
+        ChannelView[] result = new ChannelView[_serie.getNChannels()];
+        
+        for (int channel = 0; channel < result.length; channel++)
+        {
+            int[] indices = new int[_serie.getNSlices()];
+            for (int z = 0; z < indices.length; z++)
+            {
+                indices[z] = _serie.getStackIndex(channel + 1, z + 1, 1);
+            }
+            result[channel] = new ChannelView(stack, indices, signed16Bit);
+        }
+        return result;
+    }
+    
+    int getSliceCount()
+    {
+        return indices.length;
+    }
+    
+    int getWidth()
+    {
+        return stack.getWidth();
+    }
+    
+    int getHeight()
+    {
+        return stack.getHeight();
+    }
+    
+    boolean isSigned16Bit()
+    {
+        return signed16Bit;
+    }
+    
+    /**
+     * Get a processor on a slice, sharing its pixels with the serie
+     * @param _slice slice index (0-based)
+     * @return 
+     */
+    ImageProcessor getProcessor(int _slice)
+    {
+        return stack.getProcessor(indices[_slice]);
+    }
+    
+    /**
+     * Create an image of the channel, sharing its pixels with the serie
+     * (to display it or to use ImageJ plugins on it).
+     * @param _title
+     * @return 
+     */
+    ImagePlus toImagePlus(String _title)
+    {
+        ImageStack channelStack = new ImageStack(getWidth(), getHeight());
+        for (int slice = 0; slice < indices.length; slice++)
+        {
+            channelStack.addSlice(stack.getSliceLabel(indices[slice]), getProcessor(slice));
+        }
+        return new ImagePlus(_title, channelStack);
+    }
+}
@@ -25,6 +25,9 @@ package com.berdal84.mageek;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import org.apache.commons.io.FilenameUtils;
 
 /**
@@ -40,7 +43,7 @@ public class FileHelper
 
     public static String formatExtension(String _extension)
     {
-        return String.format("*.%s", _extension);
+        return "*." + _extension;
     }
 
     /**
@@ -51,52 +54,34 @@ public class FileHelper
      */
     public static ArrayList<String> getFileExtensions(ArrayList<File> _files)
     {
-        ArrayList<String> result = new ArrayList();
+        Set<String> result = new LinkedHashSet<>();
 
         _files.forEach((File _eachFile) ->
         {
-            String extension = getFormattedExtension(_eachFile);
-            if (extension != null && !result.contains(extension))
-            {
-                result.add(extension);
-            }
+            result.add(getFormattedExtension(_eachFile));
         });
 
-        return result;
+        return new ArrayList<>(result);
     }
 
     /**
-     * Get files from a directory recursively or not
+     * Get files from a directory recursively or not (@see FileScanner to get
+     * them while scanning).
      *
      * @param _directory
      * @param _recursively
-     * @return
+     * @param _ignoreFolderName folders with this name are not scanned
+     * @return the files found, sorted by path
      */
     public static ArrayList<File> getFiles(File _directory, boolean _recursively, String _ignoreFolderName)
     {
         ArrayList<File> result = new ArrayList<>();
-        File[] content = _directory.listFiles();
-
-        if (content != null)
+        FileScanner scanner = new FileScanner(_recursively, _ignoreFolderName, null, (FileScanner _source, List<File> _files) ->
         {
-            for (File file : content)
-            {
-                if (file.isDirectory() && !file.getName().equals(_ignoreFolderName) )
-                {
-                    if (_recursively)
-                    {
-                        ArrayList<File> subFolderFiles = getFiles(file, true, _ignoreFolderName);
-                        result.addAll(subFolderFiles);
-                    }
-                }
-                else
-                {
-                    result.add(file);
-                }
-
-            }
-        }
-
+            result.addAll(_files);
+        });
+        scanner.scan(_directory);
+        result.sort(null);
         return result;
     }
 
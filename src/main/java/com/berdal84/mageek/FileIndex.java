@@ -0,0 +1,150 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Berdal84.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.berdal84.mageek;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Files bucketed by extension, with the file count and the total size of
+ * each bucket.
+ *
+ * Getting the files of some extensions costs the number of files returned,
+ * not the number of files indexed.
+ */
+public class FileIndex
+{
+    /**
+     * Files having the same extension
+     */
+    private static class Bucket
+    {
+        final ArrayList<File> files = new ArrayList<>();
+        long size;
+    }
+    
+    /* Buckets by formatted extension (@see FileHelper.formatExtension()), sorted */
+    private final Map<String, Bucket> buckets = new TreeMap<>();
+    
+    /**
+     * Add a file to the bucket of its extension
+     * @param _file
+     * @param _extension formatted extension (@see FileHelper.formatExtension())
+     * @param _size size of the file in bytes
+     */
+    void add(File _file, String _extension, long _size)
+    {
+        Bucket bucket = buckets.computeIfAbsent(_extension, (_key) -> new Bucket());
+        bucket.files.add(_file);
+        bucket.size += _size;
+    }
+    
+    /**
+     * Get the extensions of the indexed files
+     * @return the formatted extensions, sorted
+     */
+    public ArrayList<String> getExtensions()
+    {
+        return new ArrayList<>(buckets.keySet());
+    }
+    
+    /**
+     * Get the number of files with an extension
+     * @param _extension formatted extension
+     * @return 
+     */
+    public int getFileCount(String _extension)
+    {
+        Bucket bucket = buckets.get(_extension);
+        return bucket == null ? 0 : bucket.files.size();
+    }
+    
+    /**
+     * Get the total size of the files with an extension
+     * @param _extension formatted extension
+     * @return the size in bytes
+     */
+    public long getSize(String _extension)
+    {
+        Bucket bucket = buckets.get(_extension);
+        return bucket == null ? 0 : bucket.size;
+    }
+    
+    /**
+     * Get the files with some extensions
+     * @param _extensions formatted extensions
+     * @return the files, sorted by path
+     */
+    public ArrayList<File> getFiles(Collection<String> _extensions)
+    {
+        int count = 0;
+        for (String eachExtension : _extensions)
+        {
+            count += getFileCount(eachExtension);
+        }
+        
+        ArrayList<File> result = new ArrayList<>(count);
+        for (String eachExtension : _extensions)
+        {
+            Bucket bucket = buckets.get(eachExtension);
+            if ( bucket != null )
+            {
+                result.addAll(bucket.files);
+            }
+        }
+        result.sort(null);
+        return result;
+    }
+    
+    /**
+     * Get all the indexed files
+     * @return the files, sorted by path
+     */
+    public ArrayList<File> getFiles()
+    {
+        return getFiles(buckets.keySet());
+    }
+    
+    /**
+     * Format a size in bytes for display (ex: "12.3 MB")
+     * @param _size
+     * @return 
+     */
+    public static String formatSize(long _size)
+    {
+        final String[] units = { "B", "KB", "MB", "GB", "TB" };
+        double size = _size;
+        int unit = 0;
+        while ( size >= 1024 && unit < units.length - 1 )
+        {
+            size /= 1024;
+            unit++;
+        }
+        return unit == 0 ? String.format("%d B", _size) : String.format("%.1f %s", size, units[unit]);
+    }
+}
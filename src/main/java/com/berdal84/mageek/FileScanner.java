@@ -0,0 +1,292 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Berdal84.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.berdal84.mageek;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Scan a directory tree in parallel and stream the files found in batches.
+ *
+ * Each directory is listed by a fork/join task (with a DirectoryStream), its
+ * subdirectories are scanned by sub-tasks. The ignored folder and the extension
+ * filter are applied while walking, the listener receives the files as soon as
+ * a batch is full, it does not have to wait for the whole tree.
+ *
+ * With a SourceIndex, the directories which did not change since the last
+ * scan are not listed again, their content is read from the index.
+ */
+public class FileScanner
+{
+    public interface Listener
+    {
+        /**
+         * Called for each batch of files found, never concurrently.
+         * @param _source the scanner which found the files
+         * @param _files 
+         */
+        void onFilesFound(FileScanner _source, List<File> _files);
+    }
+    
+    /* Number of files per batch */
+    private static final int BATCH_SIZE = 1000;
+    
+    /* Directories are mostly waiting for the disk, more tasks than cores keep it busy */
+    private static final int MIN_PARALLELISM = 8;
+    
+    private final boolean recursively;
+    private final String ignoreFolderName;
+    private final Set<String> extensions;
+    private final Listener listener;
+    
+    /* Index of the scanned tree, null to list every directory */
+    private SourceIndex index;
+    
+    /* Files found, not yet passed to the listener */
+    private final List<File> batch = new ArrayList<>();
+    
+    private volatile boolean canceled;
+
+    /**
+     * Create a scanner
+     * @param _recursively when false, only the files of the scanned directory are found
+     * @param _ignoreFolderName folders with this name are not scanned (ex: "ANALYSED")
+     * @param _extensions formatted extensions of the files to find (@see FileHelper.formatExtension()), null for all
+     * @param _listener 
+     */
+    public FileScanner(boolean _recursively, String _ignoreFolderName, Collection<String> _extensions, Listener _listener)
+    {
+        recursively = _recursively;
+        ignoreFolderName = _ignoreFolderName;
+        extensions = _extensions == null ? null : new HashSet<>(_extensions);
+        listener = _listener;
+    }
+    
+    /**
+     * Use an index to list only the directories changed since the last scan,
+     * the index is updated while scanning (@see SourceIndex.save()).
+     * @param _index index of the scanned directory, null for none
+     */
+    void setIndex(SourceIndex _index)
+    {
+        index = _index;
+    }
+    
+    /**
+     * Scan a directory, returns once all the files have been passed to the listener
+     * (or once canceled).
+     * @param _directory 
+     */
+    public void scan(File _directory)
+    {
+        ForkJoinPool pool = new ForkJoinPool(Math.max(MIN_PARALLELISM, Runtime.getRuntime().availableProcessors()));
+        try
+        {
+            pool.invoke(new ScanTask(_directory.toPath(), true));
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+        flush();
+    }
+    
+    /**
+     * Stop the scan, can be called from any thread.
+     */
+    public void cancel()
+    {
+        canceled = true;
+    }
+    
+    public boolean isCanceled()
+    {
+        return canceled;
+    }
+    
+    /**
+     * List a directory, scan its subdirectories with sub-tasks.
+     */
+    private class ScanTask extends RecursiveAction
+    {
+        private final Path directory;
+        private final boolean root;
+
+        ScanTask(Path _directory, boolean _root)
+        {
+            directory = _directory;
+            root = _root;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if ( canceled )
+            {
+                return;
+            }
+            
+            if ( index != null )
+            {
+                computeIndexed();
+                return;
+            }
+            
+            List<ScanTask> subTasks = new ArrayList<>();
+            List<File> found = new ArrayList<>();
+            try ( DirectoryStream<Path> stream = Files.newDirectoryStream(directory) )
+            {
+                for (Path path : stream)
+                {
+                    if ( canceled )
+                    {
+                        return;
+                    }
+                    
+                    BasicFileAttributes attributes;
+                    try
+                    {
+                        attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    }
+                    catch (IOException ex)
+                    {
+                        // a broken link or an entry deleted meanwhile, the others are still scanned
+                        Logger.getLogger(FileScanner.class.getName()).log(Level.FINE, null, ex);
+                        continue;
+                    }
+                    
+                    if ( attributes.isDirectory() )
+                    {
+                        if ( recursively && !path.getFileName().toString().equals(ignoreFolderName) )
+                        {
+                            subTasks.add(new ScanTask(path, false));
+                        }
+                    }
+                    else if ( accept(path) )
+                    {
+                        found.add(path.toFile());
+                        if ( found.size() == BATCH_SIZE )
+                        {
+                            add(found);
+                            found = new ArrayList<>();
+                        }
+                    }
+                }
+            }
+            catch (IOException | DirectoryIteratorException ex)
+            {
+                // like File.listFiles(), an unreadable directory is skipped
+                Logger.getLogger(FileScanner.class.getName()).log(root ? Level.WARNING : Level.FINE, null, ex);
+            }
+            add(found);
+            ForkJoinTask.invokeAll(subTasks);
+        }
+        
+        /**
+         * Same as compute(), with the directory listing got from the index.
+         */
+        private void computeIndexed()
+        {
+            SourceIndex.Directory listing;
+            try
+            {
+                listing = index.list(directory);
+            }
+            catch (IOException ex)
+            {
+                Logger.getLogger(FileScanner.class.getName()).log(root ? Level.WARNING : Level.FINE, null, ex);
+                return;
+            }
+            
+            List<File> found = new ArrayList<>();
+            for (int i = 0; i < listing.names.length; i++)
+            {
+                if ( extensions == null || extensions.contains(listing.extensions[i]) )
+                {
+                    found.add(directory.resolve(listing.names[i]).toFile());
+                    if ( found.size() == BATCH_SIZE )
+                    {
+                        add(found);
+                        found = new ArrayList<>();
+                    }
+                }
+            }
+            add(found);
+            
+            List<ScanTask> subTasks = new ArrayList<>();
+            if ( recursively )
+            {
+                for (String subdirectory : listing.subdirectories)
+                {
+                    if ( !subdirectory.equals(ignoreFolderName) )
+                    {
+                        subTasks.add(new ScanTask(directory.resolve(subdirectory), false));
+                    }
+                }
+            }
+            ForkJoinTask.invokeAll(subTasks);
+        }
+    }
+    
+    private boolean accept(Path _path)
+    {
+        return extensions == null || extensions.contains(FileHelper.getFormattedExtension(_path.toFile()));
+    }
+    
+    /**
+     * Add files to the current batch, pass it to the listener once full.
+     */
+    private synchronized void add(List<File> _files)
+    {
+        batch.addAll(_files);
+        if ( batch.size() >= BATCH_SIZE )
+        {
+            flush();
+        }
+    }
+    
+    private synchronized void flush()
+    {
+        if ( !batch.isEmpty() && !canceled )
+        {
+            listener.onFilesFound(this, new ArrayList<>(batch));
+        }
+        batch.clear();
+    }
+}
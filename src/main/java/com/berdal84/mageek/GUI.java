@@ -24,15 +24,21 @@
 package com.berdal84.mageek;
 
 import java.awt.Color;
+import java.awt.Component;
 import java.awt.event.ActionListener;
 import java.awt.event.ItemListener;
 import java.beans.PropertyChangeListener;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import javax.swing.DefaultListCellRenderer;
 import javax.swing.DefaultListModel;
 import javax.swing.JComboBox;
+import javax.swing.JList;
+import javax.swing.event.ChangeListener;
 import javax.swing.event.ListSelectionListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
 import net.imagej.ops.OpService;
 import org.scijava.Context;
 import org.scijava.app.StatusService;
@@ -61,6 +67,21 @@ public class GUI extends javax.swing.JFrame
         colorComboBoxes.add(color2ComboBox);
         colorComboBoxes.add(color3ComboBox);
         colorComboBoxes.add(color4ComboBox);
+        
+        // extensions are shown with their file count and size
+        extensionList.setCellRenderer(new DefaultListCellRenderer()
+        {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus)
+            {
+                String extension = (String) value;
+                String text = String.format("%s (%d, %s)",
+                        extension,
+                        fileIndex.getFileCount(extension),
+                        FileIndex.formatSize(fileIndex.getSize(extension)));
+                return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+            }
+        });
     }
 
     /**
@@ -107,6 +128,24 @@ public class GUI extends javax.swing.JFrame
         jLabel9 = new javax.swing.JLabel();
         color4ComboBox = new javax.swing.JComboBox<>();
         batchCheckBox = new javax.swing.JCheckBox();
+        jLabel11 = new javax.swing.JLabel();
+        threadCountSpinner = new javax.swing.JSpinner();
+        pipelineCheckBox = new javax.swing.JCheckBox();
+        streamingCheckBox = new javax.swing.JCheckBox();
+        vectorCheckBox = new javax.swing.JCheckBox();
+        metadataCheckBox = new javax.swing.JCheckBox();
+        readerCacheCheckBox = new javax.swing.JCheckBox();
+        projectionCacheCheckBox = new javax.swing.JCheckBox();
+        recolorCheckBox = new javax.swing.JCheckBox();
+        bitDepthCheckBox = new javax.swing.JCheckBox();
+        tiledCheckBox = new javax.swing.JCheckBox();
+        pyramidCheckBox = new javax.swing.JCheckBox();
+        omeTiffCheckBox = new javax.swing.JCheckBox();
+        omeTiffPerFileCheckBox = new javax.swing.JCheckBox();
+        zarrCheckBox = new javax.swing.JCheckBox();
+        compressionLabel = new javax.swing.JLabel();
+        compressionComboBox = new javax.swing.JComboBox<>();
+        removeDeletedOutputsCheckBox = new javax.swing.JCheckBox();
         jLabel10 = new javax.swing.JLabel();
         jScrollPane1 = new javax.swing.JScrollPane();
         jScrollPane1.setBackground(new Color(0,0,0,0));
@@ -228,6 +267,59 @@ public class GUI extends javax.swing.JFrame
         batchCheckBox.setText("Batch Mode");
         batchCheckBox.setToolTipText("Enable by default, will process the images in background (faster).");
 
+        jLabel11.setHorizontalAlignment(javax.swing.SwingConstants.RIGHT);
+        jLabel11.setText("Workers");
+
+        threadCountSpinner.setModel(new javax.swing.SpinnerNumberModel(1, 1, 256, 1));
+        threadCountSpinner.setToolTipText("Number of files processed at the same time (1 = one after another).");
+
+        pipelineCheckBox.setText("Pipeline");
+        pipelineCheckBox.setToolTipText("Read, project and write in separate stages so disk and CPU work at the same time (batch mode only).");
+
+        streamingCheckBox.setText("Low memory");
+        streamingCheckBox.setToolTipText("Project slices one by one while reading them instead of loading whole stacks (batch mode only).");
+
+        vectorCheckBox.setText("SIMD");
+        vectorCheckBox.setToolTipText("Use the Java Vector API for 16-bit Average/Max/Sum projections (needs Java 17+ started with --add-modules jdk.incubator.vector).");
+
+        metadataCheckBox.setText("Save metadata");
+        metadataCheckBox.setToolTipText("Save a small text file with the dimensions and pixel size of each serie next to the outputs.");
+
+        readerCacheCheckBox.setText("Cache headers");
+        readerCacheCheckBox.setToolTipText("Keep parsed file headers on disk so next runs on the same files open them faster (batch mode only).");
+
+        projectionCacheCheckBox.setText("Cache projections");
+        projectionCacheCheckBox.setToolTipText("Keep projected channels on disk so processing the same files with other colors only applies the LUTs.");
+
+        recolorCheckBox.setText("Recolor only");
+        recolorCheckBox.setToolTipText("Apply the colors to the outputs already in the ANALYSED folder, without processing the source files again.");
+
+        bitDepthCheckBox.setText("Keep bit depth");
+        bitDepthCheckBox.setToolTipText("Save 16-bit and 32-bit projections as is instead of converting them to 8-bit.");
+
+        tiledCheckBox.setText("Tiled");
+        tiledCheckBox.setToolTipText("Read, project and write the images by tiles (always done for planes too large to be read at once).");
+
+        pyramidCheckBox.setText("Pyramid");
+        pyramidCheckBox.setToolTipText("Save tiled multi-resolution TIFF files, large outputs open faster in viewers.");
+
+        omeTiffCheckBox.setText("OME-TIFF");
+        omeTiffCheckBox.setToolTipText("Save each serie to a single multi-channel OME-TIFF file instead of one TIFF file per channel.");
+
+        omeTiffPerFileCheckBox.setText("One OME-TIFF per file");
+        omeTiffPerFileCheckBox.setToolTipText("With OME-TIFF, save all the series of a file to the same OME-TIFF file.");
+
+        zarrCheckBox.setText("Zarr");
+        zarrCheckBox.setToolTipText("Save each serie to a chunked, compressed Zarr image (OME-NGFF) instead of TIFF files.");
+
+        compressionLabel.setHorizontalAlignment(javax.swing.SwingConstants.RIGHT);
+        compressionLabel.setText("Compression");
+
+        compressionComboBox.setToolTipText("Compression of the TIFF files, strips are compressed in parallel.");
+
+        removeDeletedOutputsCheckBox.setText("Remove outputs of deleted files");
+        removeDeletedOutputsCheckBox.setToolTipText("When updating an output directory, delete the outputs of the source files that no longer exist.");
+
         javax.swing.GroupLayout colorPanelLayout = new javax.swing.GroupLayout(colorPanel);
         colorPanel.setLayout(colorPanelLayout);
         colorPanelLayout.setHorizontalGroup(
@@ -240,6 +332,8 @@ public class GUI extends javax.swing.JFrame
                     .addComponent(jLabel8, javax.swing.GroupLayout.Alignment.LEADING, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
                     .addComponent(jLabel6, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
                     .addComponent(jLabel9, javax.swing.GroupLayout.Alignment.LEADING, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                    .addComponent(compressionLabel, javax.swing.GroupLayout.Alignment.LEADING, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                    .addComponent(jLabel11, javax.swing.GroupLayout.Alignment.LEADING, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
                     .addGroup(colorPanelLayout.createSequentialGroup()
                         .addGap(0, 0, Short.MAX_VALUE)
                         .addComponent(jLabel7)))
@@ -247,6 +341,22 @@ public class GUI extends javax.swing.JFrame
                 .addGroup(colorPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
                     .addComponent(colorPreset, 0, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
                     .addComponent(zProjectionComboBox, 0, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                    .addComponent(removeDeletedOutputsCheckBox, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                    .addComponent(compressionComboBox, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                    .addComponent(zarrCheckBox, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                    .addComponent(omeTiffPerFileCheckBox, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                    .addComponent(omeTiffCheckBox, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                    .addComponent(pyramidCheckBox, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                    .addComponent(tiledCheckBox, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                    .addComponent(bitDepthCheckBox, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                    .addComponent(recolorCheckBox, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                    .addComponent(projectionCacheCheckBox, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                    .addComponent(readerCacheCheckBox, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                    .addComponent(metadataCheckBox, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                    .addComponent(vectorCheckBox, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                    .addComponent(streamingCheckBox, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                    .addComponent(pipelineCheckBox, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                    .addComponent(threadCountSpinner, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
                     .addGroup(colorPanelLayout.createSequentialGroup()
                         .addGroup(colorPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.TRAILING, false)
                             .addComponent(color1ComboBox, javax.swing.GroupLayout.Alignment.LEADING, 0, 165, Short.MAX_VALUE)
@@ -286,6 +396,42 @@ public class GUI extends javax.swing.JFrame
                     .addComponent(jLabel9))
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                 .addComponent(batchCheckBox, javax.swing.GroupLayout.PREFERRED_SIZE, 29, javax.swing.GroupLayout.PREFERRED_SIZE)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(colorPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(threadCountSpinner, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                    .addComponent(jLabel11))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(pipelineCheckBox, javax.swing.GroupLayout.PREFERRED_SIZE, 29, javax.swing.GroupLayout.PREFERRED_SIZE)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(streamingCheckBox, javax.swing.GroupLayout.PREFERRED_SIZE, 29, javax.swing.GroupLayout.PREFERRED_SIZE)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(vectorCheckBox, javax.swing.GroupLayout.PREFERRED_SIZE, 29, javax.swing.GroupLayout.PREFERRED_SIZE)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(metadataCheckBox, javax.swing.GroupLayout.PREFERRED_SIZE, 29, javax.swing.GroupLayout.PREFERRED_SIZE)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(readerCacheCheckBox, javax.swing.GroupLayout.PREFERRED_SIZE, 29, javax.swing.GroupLayout.PREFERRED_SIZE)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(projectionCacheCheckBox, javax.swing.GroupLayout.PREFERRED_SIZE, 29, javax.swing.GroupLayout.PREFERRED_SIZE)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(recolorCheckBox, javax.swing.GroupLayout.PREFERRED_SIZE, 29, javax.swing.GroupLayout.PREFERRED_SIZE)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(bitDepthCheckBox, javax.swing.GroupLayout.PREFERRED_SIZE, 29, javax.swing.GroupLayout.PREFERRED_SIZE)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(tiledCheckBox, javax.swing.GroupLayout.PREFERRED_SIZE, 29, javax.swing.GroupLayout.PREFERRED_SIZE)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(pyramidCheckBox, javax.swing.GroupLayout.PREFERRED_SIZE, 29, javax.swing.GroupLayout.PREFERRED_SIZE)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(omeTiffCheckBox, javax.swing.GroupLayout.PREFERRED_SIZE, 29, javax.swing.GroupLayout.PREFERRED_SIZE)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(omeTiffPerFileCheckBox, javax.swing.GroupLayout.PREFERRED_SIZE, 29, javax.swing.GroupLayout.PREFERRED_SIZE)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(zarrCheckBox, javax.swing.GroupLayout.PREFERRED_SIZE, 29, javax.swing.GroupLayout.PREFERRED_SIZE)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(colorPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(compressionComboBox, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                    .addComponent(compressionLabel))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(removeDeletedOutputsCheckBox, javax.swing.GroupLayout.PREFERRED_SIZE, 29, javax.swing.GroupLayout.PREFERRED_SIZE)
                 .addGap(0, 7, Short.MAX_VALUE))
         );
 
@@ -371,6 +517,7 @@ public class GUI extends javax.swing.JFrame
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private javax.swing.JCheckBox batchCheckBox;
+    private javax.swing.JCheckBox bitDepthCheckBox;
     private javax.swing.JButton browseBtn;
     private javax.swing.JButton cancelBtn;
     private javax.swing.JComboBox<String> color1ComboBox;
@@ -379,6 +526,8 @@ public class GUI extends javax.swing.JFrame
     private javax.swing.JComboBox<String> color4ComboBox;
     private javax.swing.JPanel colorPanel;
     private javax.swing.JComboBox<String> colorPreset;
+    private javax.swing.JComboBox<String> compressionComboBox;
+    private javax.swing.JLabel compressionLabel;
     private javax.swing.JList<String> extensionList;
     private javax.swing.JPanel extensionsPanel;
     private javax.swing.JPanel fileListPanel;
@@ -387,6 +536,7 @@ public class GUI extends javax.swing.JFrame
     private javax.swing.Box.Filler filler2;
     private javax.swing.JLabel jLabel1;
     private javax.swing.JLabel jLabel10;
+    private javax.swing.JLabel jLabel11;
     private javax.swing.JLabel jLabel2;
     private javax.swing.JLabel jLabel3;
     private javax.swing.JLabel jLabel4;
@@ -400,12 +550,26 @@ public class GUI extends javax.swing.JFrame
     private javax.swing.JScrollPane jScrollPane2;
     private javax.swing.JScrollPane jScrollPane4;
     private javax.swing.JTabbedPane jTabbedPane1;
+    private javax.swing.JCheckBox metadataCheckBox;
+    private javax.swing.JCheckBox omeTiffCheckBox;
+    private javax.swing.JCheckBox omeTiffPerFileCheckBox;
+    private javax.swing.JCheckBox pipelineCheckBox;
     private javax.swing.JButton processBtn;
     private javax.swing.JPanel processPanel;
     private javax.swing.JProgressBar progressBar;
+    private javax.swing.JCheckBox projectionCacheCheckBox;
+    private javax.swing.JCheckBox pyramidCheckBox;
+    private javax.swing.JCheckBox readerCacheCheckBox;
+    private javax.swing.JCheckBox recolorCheckBox;
+    private javax.swing.JCheckBox removeDeletedOutputsCheckBox;
     private javax.swing.JTextField sourceDirectoryTextEdit;
     private javax.swing.JPanel srcDirPanel;
     private javax.swing.JTextArea statusLabel;
+    private javax.swing.JCheckBox streamingCheckBox;
+    private javax.swing.JSpinner threadCountSpinner;
+    private javax.swing.JCheckBox tiledCheckBox;
+    private javax.swing.JCheckBox vectorCheckBox;
+    private javax.swing.JCheckBox zarrCheckBox;
     private javax.swing.JComboBox<String> zProjectionComboBox;
     private javax.swing.JLabel zProjectionLabel;
     // End of variables declaration//GEN-END:variables
@@ -432,10 +596,88 @@ public class GUI extends javax.swing.JFrame
 
     private DefaultListModel listModel = new DefaultListModel();
     
+    /* Files of the extension list (@see setFileExtensionList()) */
+    private FileIndex fileIndex = new FileIndex();
+    
     public void addBatchModeListener(ActionListener listener)
     { 
         batchCheckBox.addActionListener(listener);
     }
+
+    public void addThreadCountListener(ChangeListener listener)
+    { 
+        threadCountSpinner.addChangeListener(listener);
+    }
+
+    public void addRemoveDeletedOutputsListener(ActionListener listener)
+    { 
+        removeDeletedOutputsCheckBox.addActionListener(listener);
+    }
+
+    public void addZarrListener(ActionListener listener)
+    { 
+        zarrCheckBox.addActionListener(listener);
+    }
+
+    public void addOmeTiffPerFileListener(ActionListener listener)
+    { 
+        omeTiffPerFileCheckBox.addActionListener(listener);
+    }
+
+    public void addOmeTiffListener(ActionListener listener)
+    { 
+        omeTiffCheckBox.addActionListener(listener);
+    }
+
+    public void addPyramidListener(ActionListener listener)
+    { 
+        pyramidCheckBox.addActionListener(listener);
+    }
+
+    public void addTiledListener(ActionListener listener)
+    { 
+        tiledCheckBox.addActionListener(listener);
+    }
+
+    public void addKeepBitDepthListener(ActionListener listener)
+    { 
+        bitDepthCheckBox.addActionListener(listener);
+    }
+
+    public void addRecolorOutputsListener(ActionListener listener)
+    { 
+        recolorCheckBox.addActionListener(listener);
+    }
+
+    public void addProjectionCacheListener(ActionListener listener)
+    { 
+        projectionCacheCheckBox.addActionListener(listener);
+    }
+
+    public void addReaderCacheListener(ActionListener listener)
+    { 
+        readerCacheCheckBox.addActionListener(listener);
+    }
+
+    public void addMetadataSidecarListener(ActionListener listener)
+    { 
+        metadataCheckBox.addActionListener(listener);
+    }
+
+    public void addPipelineListener(ActionListener listener)
+    { 
+        pipelineCheckBox.addActionListener(listener);
+    }
+
+    public void addStreamingListener(ActionListener listener)
+    { 
+        streamingCheckBox.addActionListener(listener);
+    }
+
+    public void addVectorizedListener(ActionListener listener)
+    { 
+        vectorCheckBox.addActionListener(listener);
+    }
    
     public void addCancelBtnListener(ActionListener listener)
     { 
@@ -457,6 +699,11 @@ public class GUI extends javax.swing.JFrame
         zProjectionComboBox.addItemListener(listener);
     }
     
+    public void addSelectCompressionListener(ItemListener listener)
+    {
+        compressionComboBox.addItemListener(listener);
+    }
+    
     public void addSelectColorListener(ItemListener listener)
     {
         for( JComboBox eachCombo : colorComboBoxes )
@@ -483,6 +730,11 @@ public class GUI extends javax.swing.JFrame
         processBtn.addActionListener(listener);
     }
 
+    void setProcessEnabled(boolean _enabled)
+    {
+        processBtn.setEnabled(_enabled);
+    }
+
     public void setStatus(String str)
     {
         statusLabel.setText(String.format("Status: %s", str));
@@ -498,13 +750,14 @@ public class GUI extends javax.swing.JFrame
         sourceDirectoryTextEdit.setText(path);
     }
 
-    public void setFileExtensionList(ArrayList<String> extensions)
+    public void setFileExtensionList(FileIndex _fileIndex)
     {
-        extensionList.removeAll();
+        fileIndex = _fileIndex;
+        listModel.clear();
         
-        for (String eachExtension : extensions)
+        for (String eachExtension : _fileIndex.getExtensions())
         {
-            listModel.add( 0, eachExtension );
+            listModel.addElement( eachExtension );
         }
     }
 
@@ -533,6 +786,28 @@ public class GUI extends javax.swing.JFrame
         fileTextArea.setText(sb.toString());
     };
 
+    void appendFileList(List<File> _files)
+    {
+        StringBuilder sb = new StringBuilder();
+        
+        _files.forEach((each) ->
+        {
+            sb.append(each.toString());
+            sb.append('\n');
+        });
+        
+        Document document = fileTextArea.getDocument();
+        try
+        {
+            document.insertString(document.getLength(), sb.toString(), null);
+        }
+        catch (BadLocationException ex)
+        {
+            // the end of the document is always a valid location
+            throw new IllegalStateException(ex);
+        }
+    }
+
     void setSelectedFileExtensions(String[] _extensions)
     {      
         
@@ -582,6 +857,20 @@ public class GUI extends javax.swing.JFrame
     {
         zProjectionComboBox.setSelectedItem(_projection);
     }
+    
+    void setAvailableCompressions(String[] _compressions)
+    {
+        compressionComboBox.removeAllItems();
+        for( String each : _compressions)
+        {
+            compressionComboBox.addItem(each);
+        }
+    }
+    
+    void setCompression(String _compression)
+    {
+        compressionComboBox.setSelectedItem(_compression);
+    }
 
     void setColorPreset(ColorPreset _preset, boolean _setColors)
     {
@@ -632,5 +921,85 @@ public class GUI extends javax.swing.JFrame
     {
         batchCheckBox.setSelected(batchMode);
     }
+
+    void setThreadCount(int _threadCount)
+    {
+        threadCountSpinner.setValue(_threadCount);
+    }
+
+    int getThreadCount()
+    {
+        return (Integer) threadCountSpinner.getValue();
+    }
+
+    void setRemoveDeletedOutputs(boolean _removeDeletedOutputs)
+    {
+        removeDeletedOutputsCheckBox.setSelected(_removeDeletedOutputs);
+    }
+
+    void setZarr(boolean _zarr)
+    {
+        zarrCheckBox.setSelected(_zarr);
+    }
+
+    void setOmeTiffPerFile(boolean _omeTiffPerFile)
+    {
+        omeTiffPerFileCheckBox.setSelected(_omeTiffPerFile);
+    }
+
+    void setOmeTiff(boolean _omeTiff)
+    {
+        omeTiffCheckBox.setSelected(_omeTiff);
+    }
+
+    void setPyramid(boolean _pyramid)
+    {
+        pyramidCheckBox.setSelected(_pyramid);
+    }
+
+    void setTiled(boolean _tiled)
+    {
+        tiledCheckBox.setSelected(_tiled);
+    }
+
+    void setKeepBitDepth(boolean _keepBitDepth)
+    {
+        bitDepthCheckBox.setSelected(_keepBitDepth);
+    }
+
+    void setRecolorOutputs(boolean _recolorOutputs)
+    {
+        recolorCheckBox.setSelected(_recolorOutputs);
+    }
+
+    void setProjectionCache(boolean _projectionCache)
+    {
+        projectionCacheCheckBox.setSelected(_projectionCache);
+    }
+
+    void setReaderCache(boolean _readerCache)
+    {
+        readerCacheCheckBox.setSelected(_readerCache);
+    }
+
+    void setMetadataSidecar(boolean _metadataSidecar)
+    {
+        metadataCheckBox.setSelected(_metadataSidecar);
+    }
+
+    void setPipelined(boolean _pipelined)
+    {
+        pipelineCheckBox.setSelected(_pipelined);
+    }
+
+    void setStreaming(boolean _streaming)
+    {
+        streamingCheckBox.setSelected(_streaming);
+    }
+
+    void setVectorized(boolean _vectorized)
+    {
+        vectorCheckBox.setSelected(_vectorized);
+    }
     
 };
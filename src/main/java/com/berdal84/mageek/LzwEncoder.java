@@ -0,0 +1,160 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Berdal84.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.berdal84.mageek;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * TIFF flavour of the LZW compression (codes of 9 to 12 bits, most significant
+ * bit first), the codes follow libtiff's encoder so that any TIFF reader
+ * can decode them.
+ */
+class LzwEncoder
+{
+    private static final int CLEAR_CODE = 256;
+    private static final int EOI_CODE = 257;
+    private static final int FIRST_CODE = 258;
+    private static final int MIN_BITS = 9;
+    private static final int MAX_BITS = 12;
+    private static final int MAX_CODE = (1 << MAX_BITS) - 1;
+    
+    /* Open addressing table of the (prefix code, byte) strings, larger than MAX_CODE to stay sparse */
+    private static final int TABLE_SIZE = 9001;
+    
+    private final ByteArrayOutputStream out;
+    private final int[] keys = new int[TABLE_SIZE];
+    private final short[] codes = new short[TABLE_SIZE];
+    private int bits;
+    private int maxCode;
+    private int nextCode;
+    
+    /* Bits not written yet, most significant first */
+    private long buffer;
+    private int bufferBits;
+
+    private LzwEncoder(int _capacity)
+    {
+        out = new ByteArrayOutputStream(_capacity);
+    }
+    
+    /**
+     * Compress a strip.
+     * @param _data
+     * @return the compressed strip
+     */
+    static byte[] encode(byte[] _data)
+    {
+        LzwEncoder encoder = new LzwEncoder(_data.length / 2 + 16);
+        encoder.reset();
+        encoder.put(CLEAR_CODE);
+        
+        if ( _data.length > 0 )
+        {
+            int prefix = _data[0] & 0xff;
+            for (int i = 1; i < _data.length; i++)
+            {
+                int value = _data[i] & 0xff;
+                int key = (prefix << 8) | value;
+                int slot = encoder.find(key);
+                if ( encoder.keys[slot] == key )
+                {
+                    prefix = encoder.codes[slot];
+                    continue;
+                }
+                
+                encoder.put(prefix);
+                encoder.keys[slot] = key;
+                encoder.codes[slot] = (short) encoder.nextCode++;
+                encoder.grow();
+                prefix = value;
+            }
+            encoder.put(prefix);
+            encoder.nextCode++;
+            encoder.grow();
+        }
+        
+        encoder.put(EOI_CODE);
+        encoder.flush();
+        return encoder.out.toByteArray();
+    }
+    
+    /**
+     * Update the code size once a code has been added, the table is cleared when full.
+     */
+    private void grow()
+    {
+        if ( nextCode == MAX_CODE - 1 )
+        {
+            put(CLEAR_CODE);
+            reset();
+        }
+        else if ( nextCode > maxCode )
+        {
+            bits++;
+            maxCode = (1 << bits) - 1;
+        }
+    }
+    
+    private void reset()
+    {
+        Arrays.fill(keys, -1);
+        bits = MIN_BITS;
+        maxCode = (1 << MIN_BITS) - 1;
+        nextCode = FIRST_CODE;
+    }
+    
+    /**
+     * Get the slot of a key, or the empty slot where it must be added.
+     */
+    private int find(int _key)
+    {
+        int slot = (_key * 31) % TABLE_SIZE;
+        while ( keys[slot] != -1 && keys[slot] != _key )
+        {
+            slot = slot == TABLE_SIZE - 1 ? 0 : slot + 1;
+        }
+        return slot;
+    }
+    
+    private void put(int _code)
+    {
+        buffer = (buffer << bits) | _code;
+        bufferBits += bits;
+        while ( bufferBits >= 8 )
+        {
+            bufferBits -= 8;
+            out.write((int) (buffer >>> bufferBits) & 0xff);
+        }
+    }
+    
+    private void flush()
+    {
+        if ( bufferBits > 0 )
+        {
+            out.write((int) (buffer << (8 - bufferBits)) & 0xff);
+            bufferBits = 0;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Berdal84.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.berdal84.mageek;
+
+import ij.plugin.ZProjector;
+import java.util.concurrent.ForkJoinPool;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+
+/**
+ * Admission control of the files processed concurrently.
+ *
+ * Before reading the pixels of a file, a worker reserves the estimated size of
+ * its working set (@see estimate()), and waits while the reserved total would
+ * exceed the budget. A file is always admitted when nothing else is reserved,
+ * a file larger than the budget is then processed alone.
+ */
+class MemoryBudget
+{
+    /* Maximum reserved bytes */
+    private final long capacity;
+    
+    /* Currently reserved bytes */
+    private long reserved;
+
+    /**
+     * Create a budget
+     * @param _capacity maximum reserved bytes
+     */
+    MemoryBudget(long _capacity)
+    {
+        capacity = _capacity;
+    }
+    
+    long getCapacity()
+    {
+        return capacity;
+    }
+    
+    /**
+     * Reserve bytes, wait until they fit in the budget.
+     * The wait is a managed block: when the caller is a ForkJoinPool worker,
+     * the pool may start a spare worker meanwhile, so the other files (and the
+     * tasks they fork) are not starved.
+     * @param _bytes
+     * @throws InterruptedException 
+     */
+    void acquire(long _bytes) throws InterruptedException
+    {
+        ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker()
+        {
+            @Override
+            public boolean block() throws InterruptedException
+            {
+                synchronized (MemoryBudget.this)
+                {
+                    while ( !tryAcquire(_bytes) )
+                    {
+                        MemoryBudget.this.wait();
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public boolean isReleasable()
+            {
+                return tryAcquire(_bytes);
+            }
+        });
+    }
+    
+    /**
+     * Reserve bytes if they fit in the budget (or if nothing is reserved)
+     * @param _bytes
+     * @return true if the bytes are reserved
+     */
+    private synchronized boolean tryAcquire(long _bytes)
+    {
+        if ( reserved > 0 && reserved + _bytes > capacity )
+        {
+            return false;
+        }
+        reserved += _bytes;
+        return true;
+    }
+    
+    /**
+     * Release bytes reserved by acquire()
+     * @param _bytes 
+     */
+    synchronized void release(long _bytes)
+    {
+        reserved -= _bytes;
+        notifyAll();
+    }
+    
+    /**
+     * Estimate the memory needed to process a file from its dimensions and pixel type,
+     * without reading any pixel.
+     * 
+     * @param _reader an initialized reader, its current serie is kept.
+     * @param _streamed true if the file is projected plane by plane (@see Process.setStreaming())
+     * @param _method projection method
+     * @return an estimation in bytes
+     */
+    static long estimate(IFormatReader _reader, boolean _streamed, String _method)
+    {
+        boolean median = ProjectionAccumulator.getMethod(_method) == ZProjector.MEDIAN_METHOD;
+        int currentSerie = _reader.getSeries();
+        long result = 0;
+        
+        for (int serie = 0; serie < _reader.getSeriesCount(); serie++)
+        {
+            _reader.setSeries(serie);
+            long planeSize = (long) _reader.getSizeX() * _reader.getSizeY();
+            long bytesPerPixel = FormatTools.getBytesPerPixel(_reader.getPixelType());
+            long channelCount = (long) _reader.getEffectiveSizeC() * _reader.getRGBChannelCount();
+            
+            // float projection of each channel (and its accumulators while projecting)
+            long projections = planeSize * channelCount * 4 * 2;
+            
+            if ( _streamed )
+            {
+                // a plane being read, all the slices of a channel for the median
+                long planes = median ? _reader.getSizeZ() : 1;
+                result += projections + planeSize * bytesPerPixel * planes * _reader.getRGBChannelCount();
+            }
+            else
+            {
+                // all the series are loaded at once
+                result += projections + planeSize * bytesPerPixel * _reader.getImageCount() * _reader.getRGBChannelCount();
+            }
+        }
+        
+        _reader.setSeries(currentSerie);
+        return result;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Berdal84.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.berdal84.mageek;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+import loci.formats.meta.IMetadata;
+import ome.units.quantity.Length;
+
+/**
+ * Some metadata relative functions used in Mageek
+ */
+public class MetadataHelper
+{
+    /**
+     * Write a compact metadata file (one "key = value" per line) describing each
+     * serie of an opened file: name, dimensions, pixel type and pixel size.
+     * 
+     * @param _sidecar the file to write
+     * @param _source the microscope image file
+     * @param _reader a reader initialized with _source
+     * @param _meta the OME metadata of _source (can be null)
+     * @throws IOException 
+     */
+    public static void writeSidecar(File _sidecar, File _source, IFormatReader _reader, IMetadata _meta) throws IOException
+    {
+        int currentSerie = _reader.getSeries();
+        
+        try ( PrintWriter writer = new PrintWriter(_sidecar, StandardCharsets.UTF_8.name()) )
+        {
+            writer.printf("file = %s%n", _source.getName());
+            writer.printf("format = %s%n", _reader.getFormat());
+            writer.printf("series = %d%n", _reader.getSeriesCount());
+
+            for (int serie = 0; serie < _reader.getSeriesCount(); serie++)
+            {
+                _reader.setSeries(serie);
+                String prefix = String.format("serie.%d.", serie);
+                
+                if ( _meta != null && serie < _meta.getImageCount() )
+                {
+                    writer.printf("%sname = %s%n", prefix, _meta.getImageName(serie));
+                }
+                writer.printf("%ssize = %d x %d x %d (XYZ), %d channel(s), %d frame(s)%n",
+                        prefix,
+                        _reader.getSizeX(),
+                        _reader.getSizeY(),
+                        _reader.getSizeZ(),
+                        _reader.getSizeC(),
+                        _reader.getSizeT());
+                writer.printf("%sdimensionOrder = %s%n", prefix, _reader.getDimensionOrder());
+                writer.printf("%spixelType = %s%n", prefix, FormatTools.getPixelTypeString(_reader.getPixelType()));
+                
+                if ( _meta != null && serie < _meta.getImageCount() )
+                {
+                    writer.printf("%spixelSize = %s x %s x %s%n",
+                            prefix,
+                            formatLength(_meta.getPixelsPhysicalSizeX(serie)),
+                            formatLength(_meta.getPixelsPhysicalSizeY(serie)),
+                            formatLength(_meta.getPixelsPhysicalSizeZ(serie)));
+                }
+            }
+        }
+        finally
+        {
+            _reader.setSeries(currentSerie);
+        }
+    }
+
+    private static String formatLength(Length _length)
+    {
+        if ( _length == null )
+        {
+            return "?";
+        }
+        return String.format("%s %s", _length.value(), _length.unit().getSymbol());
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Berdal84.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.berdal84.mageek;
+
+import ij.process.ImageProcessor;
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Write several multi-channel images to a single OME-TIFF file.
+ *
+ * Each channel is a plane (an IFD with its strips, compressed like TiffWriter's
+ * ones), planes are ordered by image then by channel. The OME-XML description of the first plane lists the
+ * images, the color of each channel and the planes they are made of.
+ * Files are big endian, they are BigTIFF only when they exceed 4 GiB.
+ */
+class OmeTiffWriter
+{
+    /* TIFF tags (in addition to TiffWriter's ones) */
+    private static final int TAG_COMPRESSION = 259;
+    
+    /* TIFF types (in addition to TiffWriter's ones) */
+    private static final int TYPE_LONG8 = 16;
+    
+    /* Upper bound of the size of a plane IFD and its values, the description and strip arrays apart */
+    private static final int IFD_MAX_SIZE = 512;
+    
+    /**
+     * A TIFF IFD entry, the value is inlined when it fits in the value field.
+     */
+    private static class Entry
+    {
+        final int tag;
+        final int type;
+        final long count;
+        final byte[] data;
+
+        Entry(int _tag, int _type, long _count, byte[] _data)
+        {
+            tag = _tag;
+            type = _type;
+            count = _count;
+            data = _data;
+        }
+    }
+    
+    private OmeTiffWriter()
+    {
+    }
+    
+    /**
+     * Write images to an OME-TIFF file.
+     * @param _file
+     * @param _names name of each image
+     * @param _images channels of each image, channels of an image must have the same size and type
+     *                (byte, short or float processors)
+     * @param _colors color of each channel index
+     * @param _compression one of TiffWriter.COMPRESSION_*
+     * @param _pool the pool compressing the strips (when null, they are compressed by the caller)
+     * @return the number of bytes written
+     * @throws IOException 
+     */
+    static long write(File _file, String[] _names, ImageProcessor[][] _images, Color[] _colors, int _compression, ForkJoinPool _pool) throws IOException
+    {
+        byte[] description = (createDescription(_names, _images, _colors) + "\0").getBytes(StandardCharsets.UTF_8);
+        
+        // Uncompressed strips are converted while writing, compressed ones before (their sizes are needed for the layout).
+        List<ImageProcessor> planes = new ArrayList<>();
+        for (ImageProcessor[] channels : _images)
+        {
+            planes.addAll(Arrays.asList(channels));
+        }
+        int[] rowsPerStrip = new int[planes.size()];
+        long[][] stripSizes = new long[planes.size()][];
+        ByteBuffer[][] strips = new ByteBuffer[planes.size()][];
+        long totalSize = 16 + description.length;
+        for (int plane = 0; plane < planes.size(); plane++)
+        {
+            ImageProcessor processor = planes.get(plane);
+            int height = processor.getHeight();
+            long rowBytes = (long) processor.getWidth() * (getBitsPerSample(processor) / 8);
+            rowsPerStrip[plane] = TiffWriter.getRowsPerStrip(rowBytes, height);
+            int stripCount = (height + rowsPerStrip[plane] - 1) / rowsPerStrip[plane];
+            stripSizes[plane] = new long[stripCount];
+            if ( _compression != TiffWriter.COMPRESSION_NONE )
+            {
+                strips[plane] = TiffWriter.compressStrips(processor.getPixels(), processor.getWidth(), height, rowsPerStrip[plane], stripCount, _compression, _pool);
+            }
+            for (int strip = 0; strip < stripCount; strip++)
+            {
+                stripSizes[plane][strip] = strips[plane] != null
+                        ? strips[plane][strip].remaining()
+                        : TiffWriter.getStripRows(strip, rowsPerStrip[plane], height) * rowBytes;
+                totalSize += stripSizes[plane][strip] + 1 + 16; // word aligned, offset and byte count
+            }
+            totalSize += IFD_MAX_SIZE;
+        }
+        boolean big = totalSize > 0xffffffffL;
+        int countSize = big ? 8 : 2;
+        int entrySize = big ? 20 : 12;
+        int offsetSize = big ? 8 : 4;
+        
+        try ( FileChannel channel = FileChannel.open(_file.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE) )
+        {
+            long offset = big ? 16 : 8;
+            ByteBuffer header = ByteBuffer.allocate((int) offset).order(ByteOrder.BIG_ENDIAN);
+            if ( big )
+            {
+                header.putShort((short) 0x4D4D).putShort((short) 43).putShort((short) 8).putShort((short) 0).putLong(offset);
+            }
+            else
+            {
+                header.putShort((short) 0x4D4D).putShort((short) 42).putInt((int) offset);
+            }
+            header.rewind();
+            write(channel, header, 0);
+            
+            for (int plane = 0; plane < planes.size(); plane++)
+            {
+                ImageProcessor processor = planes.get(plane);
+                int bitsPerSample = getBitsPerSample(processor);
+                int stripCount = stripSizes[plane].length;
+                
+                List<Entry> entries = new ArrayList<>();
+                entries.add(longEntry(TiffWriter.TAG_IMAGE_WIDTH, processor.getWidth()));
+                entries.add(longEntry(TiffWriter.TAG_IMAGE_LENGTH, processor.getHeight()));
+                entries.add(shortEntry(TiffWriter.TAG_BITS_PER_SAMPLE, bitsPerSample));
+                entries.add(shortEntry(TAG_COMPRESSION, TiffWriter.COMPRESSION_CODES[_compression]));
+                entries.add(shortEntry(TiffWriter.TAG_PHOTOMETRIC_INTERPRETATION, 1)); // colors are in the description
+                if ( plane == 0 )
+                {
+                    entries.add(new Entry(TiffWriter.TAG_IMAGE_DESCRIPTION, TiffWriter.TYPE_ASCII, description.length, description));
+                }
+                Entry stripOffsets = new Entry(TiffWriter.TAG_STRIP_OFFSETS, big ? TYPE_LONG8 : TiffWriter.TYPE_LONG,
+                        stripCount, new byte[stripCount * offsetSize]); // filled once the layout is known
+                entries.add(stripOffsets);
+                entries.add(shortEntry(TiffWriter.TAG_SAMPLES_PER_PIXEL, 1));
+                entries.add(longEntry(TiffWriter.TAG_ROWS_PER_STRIP, rowsPerStrip[plane]));
+                ByteBuffer stripByteCounts = ByteBuffer.allocate(stripCount * offsetSize);
+                for (long stripSize : stripSizes[plane])
+                {
+                    if ( big )
+                    {
+                        stripByteCounts.putLong(stripSize);
+                    }
+                    else
+                    {
+                        stripByteCounts.putInt((int) stripSize);
+                    }
+                }
+                entries.add(new Entry(TiffWriter.TAG_STRIP_BYTE_COUNTS, big ? TYPE_LONG8 : TiffWriter.TYPE_LONG, stripCount, stripByteCounts.array()));
+                if ( bitsPerSample == 32 )
+                {
+                    entries.add(shortEntry(TiffWriter.TAG_SAMPLE_FORMAT, 3)); // IEEE float
+                }
+                
+                // Layout: IFD, values not inlined, strips, next IFD.
+                long ifdSize = countSize + entries.size() * entrySize + offsetSize;
+                long valuesSize = 0;
+                for (Entry entry : entries)
+                {
+                    if ( entry.data.length > offsetSize )
+                    {
+                        valuesSize += (entry.data.length + 1) & ~1; // word aligned
+                    }
+                }
+                long[] offsets = new long[stripCount];
+                ByteBuffer offsetBuffer = ByteBuffer.wrap(stripOffsets.data);
+                long nextOffset = offset + ifdSize + valuesSize;
+                for (int strip = 0; strip < stripCount; strip++)
+                {
+                    offsets[strip] = nextOffset;
+                    if ( big )
+                    {
+                        offsetBuffer.putLong(nextOffset);
+                    }
+                    else
+                    {
+                        offsetBuffer.putInt((int) nextOffset);
+                    }
+                    nextOffset += stripSizes[plane][strip];
+                }
+                nextOffset = (nextOffset + 1) & ~1;
+                
+                ByteBuffer ifd = ByteBuffer.allocate((int) (ifdSize + valuesSize)).order(ByteOrder.BIG_ENDIAN);
+                if ( big )
+                {
+                    ifd.putLong(entries.size());
+                }
+                else
+                {
+                    ifd.putShort((short) entries.size());
+                }
+                
+                long valueOffset = offset + ifdSize;
+                for (Entry entry : entries)
+                {
+                    ifd.putShort((short) entry.tag).putShort((short) entry.type);
+                    if ( big )
+                    {
+                        ifd.putLong(entry.count);
+                    }
+                    else
+                    {
+                        ifd.putInt((int) entry.count);
+                    }
+                    
+                    if ( entry.data.length > offsetSize )
+                    {
+                        if ( big )
+                        {
+                            ifd.putLong(valueOffset);
+                        }
+                        else
+                        {
+                            ifd.putInt((int) valueOffset);
+                        }
+                        int position = ifd.position();
+                        ifd.position((int) (valueOffset - offset));
+                        ifd.put(entry.data);
+                        ifd.position(position);
+                        valueOffset += (entry.data.length + 1) & ~1;
+                    }
+                    else
+                    {
+                        ifd.put(entry.data);
+                        ifd.position(ifd.position() + offsetSize - entry.data.length);
+                    }
+                }
+                
+                long next = plane + 1 < planes.size() ? nextOffset : 0;
+                if ( big )
+                {
+                    ifd.putLong(next);
+                }
+                else
+                {
+                    ifd.putInt((int) next);
+                }
+                ifd.rewind();
+                write(channel, ifd, offset);
+                
+                for (int strip = 0; strip < stripCount; strip++)
+                {
+                    ByteBuffer data = strips[plane] != null
+                            ? strips[plane][strip]
+                            : TiffWriter.getStrip(processor.getPixels(), processor.getWidth(), processor.getHeight(), strip, rowsPerStrip[plane]);
+                    write(channel, data, offsets[strip]);
+                }
+                strips[plane] = null; // written
+                
+                offset = nextOffset;
+            }
+            return offset;
+        }
+    }
+    
+    /**
+     * Create the OME-XML description of the images.
+     */
+    static String createDescription(String[] _names, ImageProcessor[][] _images, Color[] _colors)
+    {
+        StringBuilder xml = new StringBuilder();
+        appendHeader(xml);
+        
+        int ifd = 0;
+        for (int image = 0; image < _images.length; image++)
+        {
+            ImageProcessor[] channels = _images[image];
+            ImageProcessor first = channels[0];
+            appendImage(xml, image, _names[image], getBitsPerSample(first), first.getWidth(), first.getHeight(), channels.length, _colors, ifd);
+            ifd += channels.length;
+        }
+        xml.append("</OME>");
+        return xml.toString();
+    }
+    
+    /**
+     * Create the OME-XML description of a single channel image stored in the first IFD
+     * (its reduced resolutions, if any, being in SubIFDs).
+     * @param _name
+     * @param _bitsPerSample 8, 16 or 32 (float)
+     * @param _width
+     * @param _height
+     * @param _color color of the channel
+     * @return 
+     */
+    static String createDescription(String _name, int _bitsPerSample, int _width, int _height, Color _color)
+    {
+        StringBuilder xml = new StringBuilder();
+        appendHeader(xml);
+        appendImage(xml, 0, _name, _bitsPerSample, _width, _height, 1, new Color[] { _color }, 0);
+        xml.append("</OME>");
+        return xml.toString();
+    }
+    
+    private static void appendHeader(StringBuilder _xml)
+    {
+        _xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        _xml.append("<OME xmlns=\"http://www.openmicroscopy.org/Schemas/OME/2016-06\"");
+        _xml.append(" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"");
+        _xml.append(" xsi:schemaLocation=\"http://www.openmicroscopy.org/Schemas/OME/2016-06 http://www.openmicroscopy.org/Schemas/OME/2016-06/ome.xsd\"");
+        _xml.append(" Creator=\"Mageek\">");
+    }
+    
+    /**
+     * Append an image whose channels are the planes stored from a given IFD.
+     */
+    private static void appendImage(StringBuilder _xml, int _image, String _name, int _bitsPerSample, int _width, int _height, int _channelCount, Color[] _colors, int _ifd)
+    {
+        String type = _bitsPerSample == 8 ? "uint8" : _bitsPerSample == 16 ? "uint16" : "float";
+        
+        _xml.append(String.format("<Image ID=\"Image:%d\" Name=\"%s\">", _image, escape(_name)));
+        _xml.append(String.format(
+                "<Pixels ID=\"Pixels:%d\" DimensionOrder=\"XYCZT\" Type=\"%s\" SignificantBits=\"%d\""
+                + " SizeX=\"%d\" SizeY=\"%d\" SizeC=\"%d\" SizeZ=\"1\" SizeT=\"1\" BigEndian=\"true\" Interleaved=\"false\">",
+                _image, type, _bitsPerSample, _width, _height, _channelCount));
+        for (int channel = 0; channel < _channelCount; channel++)
+        {
+            Color color = _colors[channel];
+            // OME colors are signed RGBA integers
+            int rgba = (color.getRed() << 24) | (color.getGreen() << 16) | (color.getBlue() << 8) | 0xff;
+            _xml.append(String.format("<Channel ID=\"Channel:%d:%d\" SamplesPerPixel=\"1\" Color=\"%d\"/>", _image, channel, rgba));
+        }
+        _xml.append(String.format("<TiffData IFD=\"%d\" PlaneCount=\"%d\"/>", _ifd, _channelCount));
+        _xml.append("</Pixels></Image>");
+    }
+    
+    private static String escape(String _text)
+    {
+        return _text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+    
+    private static int getBitsPerSample(ImageProcessor _processor)
+    {
+        Object pixels = _processor.getPixels();
+        if ( pixels instanceof byte[] )
+        {
+            return 8;
+        }
+        if ( pixels instanceof short[] )
+        {
+            return 16;
+        }
+        if ( pixels instanceof float[] )
+        {
+            return 32;
+        }
+        throw new IllegalArgumentException("RGB images can't be written to OME-TIFF channels");
+    }
+    
+    private static void write(FileChannel _channel, ByteBuffer _buffer, long _position) throws IOException
+    {
+        while ( _buffer.hasRemaining() )
+        {
+            _channel.write(_buffer, _position + _buffer.position());
+        }
+    }
+    
+    private static Entry shortEntry(int _tag, int _value)
+    {
+        return new Entry(_tag, TiffWriter.TYPE_SHORT, 1, ByteBuffer.allocate(2).putShort((short) _value).array());
+    }
+    
+    private static Entry longEntry(int _tag, int _value)
+    {
+        return new Entry(_tag, TiffWriter.TYPE_LONG, 1, ByteBuffer.allocate(4).putInt(_value).array());
+    }
+}
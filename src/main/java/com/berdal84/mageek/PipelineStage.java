@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Berdal84.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.berdal84.mageek;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A stage of a processing pipeline: a fixed set of workers taking items from
+ * a bounded queue. Putting an item in a full stage blocks the caller, this is
+ * how a fast stage is slowed down by the next one (backpressure).
+ *
+ * @param <I> the type of the items processed by this stage.
+ */
+class PipelineStage<I>
+{
+    /**
+     * Interface to implement to process the items of a stage
+     */
+    public interface Worker<I>
+    {
+        /**
+         * Process a single item, called from one of the stage threads.
+         * @param _item
+         * @throws Exception 
+         */
+        public void process(I _item) throws Exception;
+    }
+    
+    /* Marker put in the queue to stop a worker */
+    private static final Object END = new Object();
+    
+    /* Items waiting to be processed */
+    private final BlockingQueue<Object> queue;
+    
+    /* Threads running the workers */
+    private final ExecutorService executor;
+    
+    /* Number of threads */
+    private final int threadCount;
+
+    /**
+     * Create and start a stage
+     * @param _name used to name the threads
+     * @param _threadCount number of workers
+     * @param _capacity maximum number of items waiting in the stage
+     * @param _worker 
+     */
+    PipelineStage(String _name, int _threadCount, int _capacity, Worker<I> _worker)
+    {
+        threadCount = Math.max(1, _threadCount);
+        queue = new ArrayBlockingQueue<>(Math.max(1, _capacity) + threadCount);
+        
+        AtomicInteger threadIndex = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threadCount, (Runnable r) ->
+        {
+            Thread thread = new Thread(r, String.format("Mageek-%s-%d", _name, threadIndex.getAndIncrement()));
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        for (int i = 0; i < threadCount; i++)
+        {
+            executor.execute(() -> work(_worker));
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private void work(Worker<I> _worker)
+    {
+        try
+        {
+            Object item;
+            while ( (item = queue.take()) != END )
+            {
+                try
+                {
+                    _worker.process((I) item);
+                }
+                catch (InterruptedException ex)
+                {
+                    throw ex;
+                }
+                catch (Exception ex)
+                {
+                    Logger.getLogger(PipelineStage.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            // stage canceled
+        }
+    }
+
+    /**
+     * Add an item to process, blocks while the stage is full.
+     * @param _item
+     * @throws InterruptedException 
+     */
+    void put(I _item) throws InterruptedException
+    {
+        queue.put(_item);
+    }
+
+    /**
+     * Wait for all the items put so far to be processed, then stop the workers.
+     * @throws InterruptedException 
+     */
+    void close() throws InterruptedException
+    {
+        for (int i = 0; i < threadCount; i++)
+        {
+            queue.put(END);
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+
+    /**
+     * Stop the workers as soon as possible, pending items are dropped.
+     */
+    void cancel()
+    {
+        queue.clear();
+        executor.shutdownNow();
+    }
+}
@@ -34,13 +34,16 @@ import java.awt.event.WindowListener;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.AbstractButton;
+import javax.swing.SwingUtilities;
 import javax.swing.WindowConstants;
+import javax.swing.event.ChangeEvent;
 import javax.swing.event.ListSelectionEvent;
 
 import loci.formats.FormatException;
@@ -72,6 +75,84 @@ public class Plugin<T extends RealType<T>>  implements Command
     /* in batch mode, files loaded are not displayed. All the process is done in background */
     private boolean batchMode;
     
+    /* Number of files to process at the same time */
+    private int threadCount;
+    
+    /* When true, reading, projecting and writing are done by separate threads */
+    private boolean pipelined;
+    
+    /* When true, slices are projected while being read (whole stacks are never loaded) */
+    private boolean streaming;
+    
+    /* When true, projections use SIMD kernels (if supported by the JVM) */
+    private boolean vectorized;
+    
+    /* When true, a compact metadata file is saved next to the outputs */
+    private boolean metadataSidecar;
+    
+    /* When true, initialized readers are cached on disk (@see READER_CACHE_DIRECTORY) */
+    private boolean readerCache;
+    
+    /* Directory of the reader cache */
+    private final File READER_CACHE_DIRECTORY = new File(
+            System.getProperty("user.home"),
+            String.format(".mageek%sreaders", File.separator));
+    
+    /* When true, only the files new or changed since the last process are processed (@see ProcessManifest) */
+    private boolean incremental;
+    
+    /* When true, the outputs already written by an interrupted process are skipped (@see ProcessJournal) */
+    private boolean resume;
+    
+    /* When true, projected channels are cached on disk (@see PROJECTION_CACHE_DIRECTORY) */
+    private boolean projectionCache;
+    
+    /* Directory and maximum size (in bytes) of the projection cache */
+    private final File PROJECTION_CACHE_DIRECTORY = new File(
+            System.getProperty("user.home"),
+            String.format(".mageek%sprojections", File.separator));
+    private final long PROJECTION_CACHE_SIZE = 4L * 1024 * 1024 * 1024;
+    
+    /* Directory of the source folder indices, to rescan only the changed directories (@see SourceIndex) */
+    private final File SOURCE_INDEX_DIRECTORY = new File(
+            System.getProperty("user.home"),
+            String.format(".mageek%sindex", File.separator));
+    
+    /* When true, the colors are applied to the existing outputs instead of processing the files */
+    private boolean recolorOutputs;
+    
+    /* When true, 16-bit and 32-bit projections are not converted to 8-bit */
+    private boolean keepBitDepth;
+    
+    /* Part of the maximum heap size that the files processed at the same time can use (@see Process.setMemoryBudget()) */
+    private final double MEMORY_BUDGET_RATIO = 0.75;
+    
+    /* When true, files are processed by tiles */
+    private boolean tiled;
+    
+    /* When true, outputs are tiled pyramids */
+    private boolean pyramid;
+    
+    /* Compression of the TIFF outputs, one of TiffWriter.COMPRESSIONS */
+    private String compression;
+    
+    /* When true, the channels of a serie are saved to a single OME-TIFF */
+    private boolean omeTiff;
+    
+    /* When true, all the series of a file are saved to the same OME-TIFF */
+    private boolean omeTiffPerFile;
+    
+    /* When true, each serie is saved to a chunked Zarr image */
+    private boolean zarr;
+    
+    /* When true, updating an output directory deletes the outputs of the removed source files */
+    private boolean removeDeletedOutputs;
+    
+    /* Pipeline: threads reading files, threads writing files, opened files waiting to be projected */
+    private final int PIPELINE_READERS = 2;
+    private final int PIPELINE_WRITERS = 2;
+    private final int PIPELINE_READ_AHEAD = 2;
+    
     /* The current source folder */
     private File sourceFolder;
 
@@ -90,6 +171,12 @@ public class Plugin<T extends RealType<T>>  implements Command
     /* Scanned files */
     private ArrayList<File> scannedFiles;
 
+    /* Scanned files by extension (@see filterFiles()) */
+    private FileIndex scannedFileIndex;
+
+    /* Scan of the source folder in progress (@see scanSourceFolder()) */
+    private volatile FileScanner currentScan;
+
     /* Filtered files */
     private ArrayList<File> filteredFiles;
 
@@ -124,9 +211,26 @@ public class Plugin<T extends RealType<T>>  implements Command
         currentProcessThread = null;
         title   = "Mageek";
         batchMode = true;
+        threadCount = 1;
+        removeDeletedOutputs = false;
+        zarr = false;
+        omeTiffPerFile = false;
+        omeTiff = false;
+        compression = TiffWriter.COMPRESSIONS[TiffWriter.COMPRESSION_NONE];
+        pyramid = false;
+        tiled = false;
+        keepBitDepth = false;
+        recolorOutputs = false;
+        projectionCache = false;
+        readerCache = false;
+        metadataSidecar = false;
+        pipelined = false;
+        streaming = false;
+        vectorized = false;
         analysedFolderName = "ANALYSED";
         scannedFileExtensions = new ArrayList<>();
         scannedFiles   = new ArrayList<>();
+        scannedFileIndex = new FileIndex();
         filteredFiles  = new ArrayList<>();
         ignoredFiles   = new ArrayList<>();
         processedFiles = new ArrayList<>();
@@ -175,12 +279,7 @@ public class Plugin<T extends RealType<T>>  implements Command
                             )
                     );
                     gui.setSourceDirectory(sourceFolder.toString());
-
-                    scannedFiles = FileHelper.getFiles(sourceFolder, true, analysedFolderName);
-                    gui.setFileList(scannedFiles);
-                    scannedFileExtensions = FileHelper.getFileExtensions(scannedFiles);
-                    gui.setFileExtensionList(scannedFileExtensions);
-                    gui.setSelectedFileExtensions(SELECTED_EXTENSIONS_DEFAULT);
+                    scanSourceFolder();
                 }
                 else
                 {
@@ -256,6 +355,12 @@ public class Plugin<T extends RealType<T>>  implements Command
             log.info(String.format("ZProjection changed to %s", projectorMethod));
         });
         
+        gui.addSelectCompressionListener((ItemEvent e) ->
+        {
+            compression = (String)e.getItem();
+            log.info(String.format("Compression changed to %s", compression));
+        });
+        
         gui.addSelectColorListener((ItemEvent evt) ->
         {
             log.info("Color changed !");
@@ -308,6 +413,96 @@ public class Plugin<T extends RealType<T>>  implements Command
             batchMode = abstractButton.getModel().isSelected();
         });
 
+        gui.addRemoveDeletedOutputsListener((ActionEvent evt) ->
+        {            
+            AbstractButton abstractButton = (AbstractButton)evt.getSource();
+            removeDeletedOutputs = abstractButton.getModel().isSelected();
+        });
+
+        gui.addZarrListener((ActionEvent evt) ->
+        {            
+            AbstractButton abstractButton = (AbstractButton)evt.getSource();
+            zarr = abstractButton.getModel().isSelected();
+        });
+
+        gui.addOmeTiffPerFileListener((ActionEvent evt) ->
+        {            
+            AbstractButton abstractButton = (AbstractButton)evt.getSource();
+            omeTiffPerFile = abstractButton.getModel().isSelected();
+        });
+
+        gui.addOmeTiffListener((ActionEvent evt) ->
+        {            
+            AbstractButton abstractButton = (AbstractButton)evt.getSource();
+            omeTiff = abstractButton.getModel().isSelected();
+        });
+
+        gui.addPyramidListener((ActionEvent evt) ->
+        {            
+            AbstractButton abstractButton = (AbstractButton)evt.getSource();
+            pyramid = abstractButton.getModel().isSelected();
+        });
+
+        gui.addTiledListener((ActionEvent evt) ->
+        {            
+            AbstractButton abstractButton = (AbstractButton)evt.getSource();
+            tiled = abstractButton.getModel().isSelected();
+        });
+
+        gui.addKeepBitDepthListener((ActionEvent evt) ->
+        {            
+            AbstractButton abstractButton = (AbstractButton)evt.getSource();
+            keepBitDepth = abstractButton.getModel().isSelected();
+        });
+
+        gui.addRecolorOutputsListener((ActionEvent evt) ->
+        {            
+            AbstractButton abstractButton = (AbstractButton)evt.getSource();
+            recolorOutputs = abstractButton.getModel().isSelected();
+        });
+
+        gui.addProjectionCacheListener((ActionEvent evt) ->
+        {            
+            AbstractButton abstractButton = (AbstractButton)evt.getSource();
+            projectionCache = abstractButton.getModel().isSelected();
+        });
+
+        gui.addReaderCacheListener((ActionEvent evt) ->
+        {            
+            AbstractButton abstractButton = (AbstractButton)evt.getSource();
+            readerCache = abstractButton.getModel().isSelected();
+        });
+
+        gui.addMetadataSidecarListener((ActionEvent evt) ->
+        {            
+            AbstractButton abstractButton = (AbstractButton)evt.getSource();
+            metadataSidecar = abstractButton.getModel().isSelected();
+        });
+
+        gui.addThreadCountListener((ChangeEvent evt) ->
+        {            
+            threadCount = gui.getThreadCount();
+            log.info(String.format("Worker count changed to %d", threadCount));
+        });
+
+        gui.addPipelineListener((ActionEvent evt) ->
+        {            
+            AbstractButton abstractButton = (AbstractButton)evt.getSource();
+            pipelined = abstractButton.getModel().isSelected();
+        });
+
+        gui.addStreamingListener((ActionEvent evt) ->
+        {            
+            AbstractButton abstractButton = (AbstractButton)evt.getSource();
+            streaming = abstractButton.getModel().isSelected();
+        });
+
+        gui.addVectorizedListener((ActionEvent evt) ->
+        {            
+            AbstractButton abstractButton = (AbstractButton)evt.getSource();
+            vectorized = abstractButton.getModel().isSelected();
+        });
+
         gui.addCancelBtnListener((ActionEvent e) ->
         {                    
             if( currentProcessThread != null )
@@ -345,24 +540,126 @@ public class Plugin<T extends RealType<T>>  implements Command
         
         gui.setAvailableZProjection(ZProjector.METHODS);
         gui.setZProjection(ZProjector.METHODS[ZProjector.AVG_METHOD]);
+        gui.setAvailableCompressions(TiffWriter.COMPRESSIONS);
+        gui.setCompression(compression);
         gui.setVisible(true);
         gui.setAlwaysOnTop(false);
         gui.setBatchMode(batchMode);
+        gui.setThreadCount(threadCount);
+        gui.setRemoveDeletedOutputs(removeDeletedOutputs);
+        gui.setZarr(zarr);
+        gui.setOmeTiffPerFile(omeTiffPerFile);
+        gui.setOmeTiff(omeTiff);
+        gui.setPyramid(pyramid);
+        gui.setTiled(tiled);
+        gui.setKeepBitDepth(keepBitDepth);
+        gui.setRecolorOutputs(recolorOutputs);
+        gui.setProjectionCache(projectionCache);
+        gui.setReaderCache(readerCache);
+        gui.setMetadataSidecar(metadataSidecar);
+        gui.setPipelined(pipelined);
+        gui.setStreaming(streaming);
+        gui.setVectorized(vectorized);
     }
 
+    /**
+     * Scan the source folder in background, files with the default extensions
+     * are listed while they are found. Once done, the extensions are listed.
+     * A scan in progress is canceled.
+     */
+    private void scanSourceFolder()
+    {
+        if ( currentScan != null )
+        {
+            currentScan.cancel();
+        }
+        
+        File folder = sourceFolder;
+        List<String> shownExtensions = Arrays.asList(SELECTED_EXTENSIONS_DEFAULT);
+        ArrayList<File> found = new ArrayList<>(); // only accessed from the event dispatch thread
+        
+        // the files of the previous folder must not be processed into the new one
+        scannedFileIndex = new FileIndex();
+        scannedFiles = new ArrayList<>();
+        filteredFiles = new ArrayList<>();
+        scannedFileExtensions = new ArrayList<>();
+        gui.setFileExtensionList(scannedFileIndex);
+        gui.setFileList(found);
+        gui.setProcessEnabled(false);
+        
+        FileScanner scanner = new FileScanner(true, analysedFolderName, null, (FileScanner _source, List<File> _files) ->
+        {
+            SwingUtilities.invokeLater(() ->
+            {
+                // batches of a canceled scan may still be queued
+                if ( _source.isCanceled() )
+                {
+                    return;
+                }
+                found.addAll(_files);
+                List<File> shown = new ArrayList<>(_files);
+                shown.removeIf((_eachFile) -> !shownExtensions.contains(FileHelper.getFormattedExtension(_eachFile)));
+                gui.appendFileList(shown);
+                gui.setStatus(String.format("Scanning %s, %d file(s) found ...", folder, found.size()));
+            });
+        });
+        currentScan = scanner;
+        
+        Thread scanThread = new Thread(() ->
+        {
+            SourceIndex index = SourceIndex.load(SOURCE_INDEX_DIRECTORY, folder, analysedFolderName);
+            scanner.setIndex(index);
+            scanner.scan(folder);
+            if ( scanner.isCanceled() )
+            {
+                return;
+            }
+            try
+            {
+                index.save();
+            }
+            catch (IOException ex)
+            {
+                log.warn(String.format("Unable to save the index of %s", folder), ex);
+            }
+            log.info(String.format("%d folder(s) of %s listed, the others were unchanged", index.getRevalidatedCount(), folder));
+            
+            SwingUtilities.invokeLater(() ->
+            {
+                if ( scanner.isCanceled() )
+                {
+                    return;
+                }
+                scannedFileIndex = index.getFileIndex();
+                scannedFiles = scannedFileIndex.getFiles();
+                gui.setFileList(scannedFiles);
+                scannedFileExtensions = scannedFileIndex.getExtensions();
+                gui.setFileExtensionList(scannedFileIndex);
+                gui.setSelectedFileExtensions(SELECTED_EXTENSIONS_DEFAULT);
+                gui.setProcessEnabled(true);
+                gui.setStatus(
+                        String.format(
+                                "Source folder %s picked, %d file(s) found. Click on process now.",
+                                folder,
+                                scannedFiles.size()
+                        )
+                );
+            });
+        }, "mageek-scan");
+        scanThread.start();
+    }
+    
     /**
      * Filter scanned files with the checked extensions.
      *
+     * Only the buckets of the checked extensions are read (@see FileIndex).
+     *
      * @param selectedExtensions
      * @return
      */
     protected ArrayList<File> filterFiles(List<String> selectedExtensions)
     {
-        filteredFiles = new ArrayList<>(scannedFiles);
-        filteredFiles.removeIf((_eachFile) ->
-        {
-            return !selectedExtensions.contains( FileHelper.getFormattedExtension(_eachFile) );
-        });
+        filteredFiles = scannedFileIndex.getFiles(selectedExtensions);
 
         gui.setStatus(
                 String.format(
@@ -377,10 +674,8 @@ public class Plugin<T extends RealType<T>>  implements Command
     /**
      * Launch the process over filtered files.
      *
-     * TODO: create a separate Plugin able to run in parallel. UI is stuck while processing currently.
-     * 
-     * Each file will be processed one by one, result will be saved to
-     * destinationDirectory.
+     * Files are processed by threadCount workers (one by one when threadCount
+     * is 1), result will be saved to destinationDirectory.
      */
     private void processFiles()
     {
@@ -396,9 +691,30 @@ public class Plugin<T extends RealType<T>>  implements Command
                 batchMode,
                 projectorMethod,
                 selectedColors,
+                threadCount,
                 log
             );
             
+            if ( pipelined )
+            {
+                p.setPipeline(PIPELINE_READERS, PIPELINE_WRITERS, PIPELINE_READ_AHEAD);
+            }
+            p.setStreaming(streaming);
+            p.setVectorized(vectorized);
+            p.setMetadataSidecar(metadataSidecar);
+            p.setReaderCacheDirectory(readerCache ? READER_CACHE_DIRECTORY : null);
+            p.setIncremental(incremental, removeDeletedOutputs);
+            p.setResume(resume);
+            p.setMemoryBudget((long) (Runtime.getRuntime().maxMemory() * MEMORY_BUDGET_RATIO));
+            p.setProjectionCache(projectionCache ? PROJECTION_CACHE_DIRECTORY : null, PROJECTION_CACHE_SIZE);
+            p.setRecolorOutputs(recolorOutputs);
+            p.setKeepBitDepth(keepBitDepth);
+            p.setTiled(tiled);
+            p.setPyramid(pyramid);
+            p.setOmeTiff(omeTiff, omeTiffPerFile);
+            p.setCompression(compression);
+            p.setZarr(zarr);
+            
             currentProcessThread  = new Thread(p);
             
             p.setListener( new Process.Listener()
@@ -465,11 +781,24 @@ public class Plugin<T extends RealType<T>>  implements Command
 
         destinationFolder = new File(destFolderPath);
 
-        if (destinationFolder.exists() && destinationFolder.list().length != 0)
+        resume = false;
+        
+        if (recolorOutputs)
+        {
+            // outputs are modified in place, nothing to erase.
+            success = destinationFolder.isDirectory();
+            if ( !success )
+            {
+                ui.showDialog(String.format("Output directory %s does not exist, nothing to recolor.", destinationFolder));
+                destinationFolder = null;
+            }
+        }
+        else if (destinationFolder.exists() && ProcessJournal.exists(destinationFolder))
         {
             String message = String.format(
-                "Output directory %s already exists and is not empty.\n" +
-                "Do you really want to continue? (all files and folders inside will be erased)",
+                "A previous process was interrupted in %s.\n" +
+                "Do you want to resume it? (files and channels already written will be skipped)\n" +
+                "Answer No to erase all files and folders inside and process everything again.",
                 destinationFolder.toString()
             );
 
@@ -477,14 +806,56 @@ public class Plugin<T extends RealType<T>>  implements Command
                     = ui.showDialog(
                             message,
                             MessageType.QUESTION_MESSAGE,
-                            OptionType.OK_CANCEL_OPTION
+                            OptionType.YES_NO_CANCEL_OPTION
                     );
 
             switch (result)
             {
-                case OK_OPTION:
                 case YES_OPTION:
+                    incremental = true;
+                    resume = true;
+                    success = true;
+                    break;
+                    
+                case NO_OPTION:
                     FileHelper.deleteDirectoryContent(destinationFolder, false);
+                    incremental = false;
+                    success = true;
+                    break;
+
+                default:
+                    destinationFolder = null;
+                    success = false;
+                    break;
+            }
+        }
+        else if (destinationFolder.exists() && destinationFolder.list().length != 0)
+        {
+            String message = String.format(
+                "Output directory %s already exists and is not empty.\n" +
+                "Do you want to erase all files and folders inside and process everything again?\n" +
+                "Answer No to update it instead (only new or changed files will be processed%s).",
+                destinationFolder.toString(),
+                removeDeletedOutputs ? ",\noutputs of deleted files will be removed" : ""
+            );
+
+            DialogPrompt.Result result
+                    = ui.showDialog(
+                            message,
+                            MessageType.QUESTION_MESSAGE,
+                            OptionType.YES_NO_CANCEL_OPTION
+                    );
+
+            switch (result)
+            {
+                case YES_OPTION:
+                    FileHelper.deleteDirectoryContent(destinationFolder, false);
+                    incremental = false;
+                    success = true;
+                    break;
+                    
+                case NO_OPTION:
+                    incremental = true;
                     success = true;
                     break;
 
@@ -497,6 +868,7 @@ public class Plugin<T extends RealType<T>>  implements Command
         else
         {
             destinationFolder.mkdir();
+            incremental = false;
             success = true;
         }
         return success;
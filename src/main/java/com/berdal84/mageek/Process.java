@@ -9,8 +9,8 @@ package com.berdal84.mageek;
 
 
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.io.FileSaver;
-import ij.plugin.ChannelSplitter;
 import ij.plugin.ZProjector;
 import ij.process.ImageProcessor;
 import ij.process.LUT;
@@ -23,15 +23,42 @@ import org.scijava.log.LogLevel;
 import org.scijava.log.LogService;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.logging.Logger;
+import loci.formats.ChannelSeparator;
 import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+import loci.formats.MetadataTools;
+import loci.formats.in.DefaultMetadataOptions;
+import loci.formats.in.MetadataLevel;
+import loci.formats.meta.IMetadata;
 import loci.plugins.in.DisplayHandler;
 import loci.plugins.in.ImagePlusReader;
 import loci.plugins.in.ImportProcess;
 import loci.plugins.in.ImporterOptions;
 import loci.plugins.in.ImporterPrompter;
+import loci.plugins.util.ImageProcessorReader;
+import loci.plugins.util.LociPrefs;
 
 /**
  * Command to process a set of file, runnable in a Thread.
@@ -57,6 +84,107 @@ public class Process<T extends RealType<T>>  implements Command
         public void onStatusChange(String _status);
     }
     
+    /**
+     * A task to run for a given index (serie, channel, file...)
+     */
+    private interface IndexedTask
+    {
+        void run(int _index) throws Exception;
+    }
+    
+    /**
+     * A file flowing through the pipeline (@see runPipeline()).
+     * The file is done once its last channel is written.
+     */
+    private static class FileJob
+    {
+        final File file;
+        
+        /* Series opened by the read stage, released by the project stage */
+        ImagePlus[] allSeries;
+        
+        /* Channels already projected by the read stage (streaming), indexed by [serie][channel] */
+        ImageProcessor[][] projected;
+        
+        /* Channels not yet written, +1 while the project stage is still producing */
+        final AtomicInteger pending = new AtomicInteger(1);
+        
+        /* Channels passed to the write stage, as serie << 32 | channel (only used by the project stage) */
+        final Set<Long> queued = new HashSet<>();
+        
+        volatile boolean failed = false;
+
+        FileJob(File _file)
+        {
+            file = _file;
+        }
+        
+        /**
+         * Mark a channel as passed to the write stage
+         * @return false if it already was
+         */
+        boolean queue(int _serie, int _channel)
+        {
+            return queued.add((long) _serie << 32 | _channel);
+        }
+    }
+    
+    /**
+     * A projected and colorized channel waiting to be written.
+     */
+    private static class ChannelOutput
+    {
+        final FileJob job;
+        final int serie;
+        final int channel;
+        final ImageProcessor processor;
+
+        ChannelOutput(FileJob _job, int _serie, int _channel, ImageProcessor _processor)
+        {
+            job = _job;
+            serie = _serie;
+            channel = _channel;
+            processor = _processor;
+        }
+    }
+    
+    /**
+     * Thrown before reading the pixels of a file having planes too large to fit
+     * in an ImageProcessor, the file must be processed by tiles (@see processTiled()).
+     */
+    private static class PlaneTooLargeException extends Exception
+    {
+        PlaneTooLargeException(File _file)
+        {
+            super(String.format("%s has planes too large to be read at once", _file.getName()));
+        }
+    }
+    
+    /**
+     * A Zarr image being written: its shape and the display range of the
+     * channels already written.
+     */
+    private static class ZarrSerie
+    {
+        final int width;
+        final int height;
+        final int bitDepth;
+        final SortedMap<Integer, double[]> ranges = new TreeMap<>();
+
+        ZarrSerie(int _width, int _height, int _bitDepth)
+        {
+            width = _width;
+            height = _height;
+            bitDepth = _bitDepth;
+        }
+    }
+    
+    /* ZProjector.run() method names, indexed like ZProjector.METHODS */
+    private static final String[] PROJECTION_KEYS = { "avg", "max", "min", "sum", "sd", "median" };
+    
+    /* Width and height of the tiles (@see processTiled()) */
+    private static final int TILE_SIZE = 1024;
+    
     private LogService log;
     
     /* Files to process */
@@ -68,17 +196,117 @@ public class Process<T extends RealType<T>>  implements Command
     /* Ignored files */
     private final ArrayList<File> ignoredFiles;
     
+    /* Files processed with the low memory strategy after an OutOfMemoryError */
+    private final ArrayList<File> fallbackFiles;
+    
     /* Batch mode, if true will process in background */
     private boolean batchMode;
     
+    /* Number of files processed at the same time (1 means sequential) */
+    private int threadCount;
+    
+    /* Set when the process is interrupted, workers stop before the next file */
+    private volatile boolean canceled;
+    
+    /* Fork/join pool used when threadCount > 1 (null otherwise) */
+    private volatile ForkJoinPool pool;
+    
+    /* When true files go through read -> project -> write stages (@see runPipeline()) */
+    private boolean pipelined;
+    
+    /* Pipeline: number of threads reading files */
+    private int readerCount;
+    
+    /* Pipeline: number of threads writing files */
+    private int writerCount;
+    
+    /* Pipeline: maximum number of opened files waiting to be projected */
+    private int readAhead;
+    
+    /* When true, files are projected plane by plane instead of loading whole stacks */
+    private boolean streaming;
+    
+    /* When true, run() only applies the colors to the outputs already in the destination folder */
+    private boolean recolorOutputs;
+    
+    /* When true, all the files are processed by tiles (files with too large planes always are) */
+    private boolean tiled;
+    
+    /* When true, outputs are tiled pyramids (@see TiledTiffWriter) */
+    private boolean pyramid;
+    
+    /* Compression of the TIFF outputs, one of TiffWriter.COMPRESSION_* */
+    private int compression;
+    
+    /* When true, the channels of a serie are saved to a single OME-TIFF (@see OmeTiffWriter) */
+    private boolean omeTiff;
+    
+    /* When true, all the series of a file are saved to the same OME-TIFF */
+    private boolean omeTiffPerFile;
+    
+    /* When true, each serie is saved to a chunked Zarr image (@see ZarrWriter) */
+    private boolean zarr;
+    
+    /* Zarr images being written, by file and serie */
+    private final Map<File, SortedMap<Integer, ZarrSerie>> zarrSeries = new ConcurrentHashMap<>();
+    
+    /* Channels waiting for the other channels of their file, by file, serie and channel */
+    private final Map<File, SortedMap<Integer, SortedMap<Integer, ImageProcessor>>> omeTiffChannels = new ConcurrentHashMap<>();
+    
+    /* When true, 16-bit and 32-bit projections are saved as is instead of being converted to 8-bit */
+    private boolean keepBitDepth;
+    
+    /* Bytes written and time spent writing outputs during the last run() */
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong writeNanos = new AtomicLong();
+    
+    /* Cache of projected channels, null to project the files each time */
+    private ProjectionCache projectionCache;
+    
+    /* Cache of initialized readers, null to parse the file headers each time */
+    private ReaderCache readerCache;
+    
+    /* When true, a compact metadata file is saved next to the outputs of each file */
+    private boolean metadataSidecar;
+    
+    /* When true, 16-bit projections use SIMD kernels if the JVM supports them */
+    private boolean vectorized;
+    
+    /* SIMD kernels used by this run (null when not vectorized or not supported) */
+    private VectorKernels vectorKernels;
+    
+    /* When true, files already processed with the same parameters are skipped (@see ProcessManifest) */
+    private boolean incremental;
+    
+    /* Incremental mode: when true, outputs of the input files which do not exist anymore are deleted */
+    private boolean removeDeletedOutputs;
+    
+    /* Manifest of the destination folder (null if it can't be read) */
+    private ProcessManifest manifest;
+    
+    /* When true, outputs recorded in the journal of an interrupted process are not written again */
+    private boolean resume;
+    
+    /* Journal of the outputs written (null if it can't be written) */
+    private ProcessJournal journal;
+    
+    /* Number of files skipped by the last run() because they were up to date */
+    private int upToDateCount;
+    
     /* Process progress (0-100) */
     private int progress;
     
     /* Destination folder */
     private File destinationFolder;
     
-    /* All images generated by the last run() */
-    private final ArrayList<ImagePlus[]> allImages;
+    /* Admission control of the files processed concurrently, null to admit all of them */
+    private MemoryBudget memoryBudget;
+    
+    /* Bytes reserved in memoryBudget by each file being processed */
+    private final ConcurrentHashMap<File, Long> reservations = new ConcurrentHashMap<>();
+    
+    /* Projections saved by run(), null when the caller does not need them */
+    private ResultCache resultCache;
     
     /* Projection method for slices projection */
     private String projectorMethod;
@@ -87,7 +315,7 @@ public class Process<T extends RealType<T>>  implements Command
     private ColorPreset colorPreset;
 
     /* Current status of the Process */
-    private String status;
+    private volatile String status;
 
     /* Process listener (notified when progress, status, ... changes) */
     private Listener listener = null;
@@ -97,7 +325,7 @@ public class Process<T extends RealType<T>>  implements Command
         files = new ArrayList<>();
         processedFiles = new ArrayList<>();
         ignoredFiles = new ArrayList<>();
-        allImages = new ArrayList<>();
+        fallbackFiles = new ArrayList<>();
     }
 
     private void init()
@@ -105,8 +333,33 @@ public class Process<T extends RealType<T>>  implements Command
         status = "";
         processedFiles.clear();
         ignoredFiles.clear();
-        allImages.clear();
+        fallbackFiles.clear();
         progress = 0;
+        upToDateCount = 0;
+        bytesWritten.set(0);
+        writeNanos.set(0);
+        canceled = false;
+    }
+    
+    /**
+     * Setup the process (before to call run()), files will be processed one by one.
+     * @param _files
+     * @param _destinationFolder
+     * @param _batchMode
+     * @param _zProjectorMethod
+     * @param _colorPreset
+     * @param _log
+     */
+    public void setup(
+        ArrayList<File> _files,
+        File _destinationFolder,
+        boolean _batchMode,
+        String _zProjectorMethod,
+        ColorPreset _colorPreset,
+        LogService _log
+    )
+    {
+        setup(_files, _destinationFolder, _batchMode, _zProjectorMethod, _colorPreset, 1, _log);
     }
     
     /**
@@ -116,6 +369,7 @@ public class Process<T extends RealType<T>>  implements Command
      * @param _batchMode
      * @param _zProjectorMethod
      * @param _colorPreset
+     * @param _threadCount number of files to process concurrently (1 = sequential)
      * @param _log
      */
     public void setup(
@@ -124,24 +378,289 @@ public class Process<T extends RealType<T>>  implements Command
         boolean _batchMode,
         String _zProjectorMethod,
         ColorPreset _colorPreset,
+        int _threadCount,
         LogService _log
     )
     {
         init();
+        files.clear();
         files.addAll(_files);
         destinationFolder = _destinationFolder;
         batchMode = _batchMode;
         projectorMethod = _zProjectorMethod;
         colorPreset = _colorPreset;
+        threadCount = Math.max(1, _threadCount);
+        pipelined = false;
+        streaming = false;
+        vectorized = false;
+        metadataSidecar = false;
+        readerCache = null;
+        projectionCache = null;
+        resultCache = null;
+        memoryBudget = null;
+        tiled = false;
+        pyramid = false;
+        compression = TiffWriter.COMPRESSION_NONE;
+        omeTiff = false;
+        omeTiffPerFile = false;
+        omeTiffChannels.clear();
+        zarr = false;
+        zarrSeries.clear();
+        keepBitDepth = false;
+        recolorOutputs = false;
+        incremental = false;
+        removeDeletedOutputs = false;
+        resume = false;
         log = _log;
     }
     
+    /**
+     * Process only the files which are new or changed since they were processed
+     * into the destination folder (or processed with another method or colors),
+     * instead of processing all the files again.
+     * Must be called after setup().
+     * @param _incremental
+     * @param _removeDeletedOutputs when true, outputs of the files which do not
+     * exist anymore are deleted.
+     */
+    public void setIncremental(boolean _incremental, boolean _removeDeletedOutputs)
+    {
+        incremental = _incremental;
+        removeDeletedOutputs = _incremental && _removeDeletedOutputs;
+    }
+    
+    /**
+     * Resume an interrupted process: the outputs recorded in the journal of the
+     * destination folder (@see ProcessJournal) are not written again, files
+     * whose outputs are all recorded are skipped once their header is read.
+     * Combine it with setIncremental() to also skip the files processed by
+     * previous (completed) runs.
+     * Must be called after setup().
+     * @param _resume
+     */
+    public void setResume(boolean _resume)
+    {
+        resume = _resume;
+    }
+    
+    /**
+     * Process the files by tiles: tiles are read from the Bio-Formats reader,
+     * projected in parallel and written to a tiled BigTIFF (@see TiledTiffWriter),
+     * the memory used depends on the tile size instead of the plane size.
+     * Files having planes too large to fit in an ImageProcessor (2^31 bytes or
+     * more) are always processed by tiles.
+     * Tiled outputs keep the bit depth of the projection.
+     * Must be called after setup().
+     * @param _tiled 
+     */
+    public void setTiled(boolean _tiled)
+    {
+        tiled = _tiled;
+    }
+    
+    /**
+     * Save the outputs as tiled pyramidal OME-TIFF (reduced resolutions are
+     * stored in SubIFDs), viewers open large outputs faster.
+     * The pyramid is built while the tiles are written.
+     * RGB outputs are not concerned.
+     * Must be called after setup().
+     * @param _pyramid 
+     */
+    public void setPyramid(boolean _pyramid)
+    {
+        pyramid = _pyramid;
+    }
+    
+    /**
+     * Set the compression of the TIFF outputs (one per channel, tiled or not, and OME-TIFF).
+     * Strips and tiles are compressed in parallel by the workers, or by the
+     * common pool when files are not processed by a pool.
+     * Must be called after setup().
+     * @param _compression one of TiffWriter.COMPRESSIONS
+     */
+    public void setCompression(String _compression)
+    {
+        int index = Arrays.asList(TiffWriter.COMPRESSIONS).indexOf(_compression);
+        if ( index == -1 )
+        {
+            throw new IllegalArgumentException(String.format("Unknown compression: %s", _compression));
+        }
+        compression = index;
+    }
+    
+    /**
+     * Save the channels of each serie to a single multi-channel OME-TIFF
+     * (named like "file.lif_serie_0.ome.tiff") instead of a TIFF per channel,
+     * the color of each channel is stored in the OME-XML description.
+     * Channels are kept in memory until all the channels of their file are projected.
+     * Outputs of the files processed by tiles are not concerned.
+     * Must be called after setup().
+     * @param _omeTiff
+     * @param _perFile when true, a single OME-TIFF with all the series is saved
+     *                 per file (named like "file.lif.ome.tiff").
+     */
+    public void setOmeTiff(boolean _omeTiff, boolean _perFile)
+    {
+        omeTiff = _omeTiff;
+        omeTiffPerFile = _perFile;
+    }
+    
+    /**
+     * Save each serie to a chunked, compressed Zarr image (named like
+     * "file.lif_serie_0.zarr") instead of a TIFF per channel. The chunks of a
+     * channel are written concurrently by the workers as soon as it is projected,
+     * the metadata (OME-NGFF, with the channel colors) once the file is done.
+     * Takes precedence over setOmeTiff(), outputs of the files processed by
+     * tiles are not concerned.
+     * Must be called after setup().
+     * @param _zarr 
+     */
+    public void setZarr(boolean _zarr)
+    {
+        zarr = _zarr;
+    }
+    
+    /**
+     * Limit the memory used by the files processed concurrently. Before reading
+     * the pixels of a file, its working set is estimated from its dimensions and
+     * pixel type, and the file waits until the estimated total of the files being
+     * processed fits in the budget (a file is always processed when it is alone).
+     * Must be called after setup().
+     * @param _bytes the budget in bytes, 0 to disable admission control.
+     */
+    public void setMemoryBudget(long _bytes)
+    {
+        memoryBudget = _bytes > 0 ? new MemoryBudget(_bytes) : null;
+    }
+    
+    /**
+     * Keep the saved projections in memory for the caller, within the limits of
+     * the cache (by default nothing is kept once written).
+     * Results are named after their output file, without extension.
+     * Must be called after setup().
+     * @param _resultCache the cache to fill, null to keep nothing.
+     */
+    public void setResultCache(ResultCache _resultCache)
+    {
+        resultCache = _resultCache;
+    }
+    
+    public ResultCache getResultCache()
+    {
+        return resultCache;
+    }
+    
+    /**
+     * Save 16-bit and 32-bit projections with their original bit depth (the LUT and
+     * display range are stored in the ImageJ metadata), instead of 8-bit images
+     * scaled using the display range.
+     * Must be called after setup().
+     * @param _keepBitDepth 
+     */
+    public void setKeepBitDepth(boolean _keepBitDepth)
+    {
+        keepBitDepth = _keepBitDepth;
+    }
+    
+    /**
+     * Instead of processing the files, apply the color preset to the outputs
+     * already in the destination folder. Only the color maps of the outputs
+     * are rewritten (@see TiffRecolorer), source files are not read.
+     * Must be called after setup().
+     * @param _recolorOutputs 
+     */
+    public void setRecolorOutputs(boolean _recolorOutputs)
+    {
+        recolorOutputs = _recolorOutputs;
+    }
+    
+    /**
+     * Keep the projected channels (before the LUT is applied) in a directory,
+     * processing the same files again with the same projection method only
+     * applies the LUTs and writes the outputs.
+     * Must be called after setup().
+     * @param _directory the cache directory, null to disable the cache.
+     * @param _maxSize maximum size of the cache in bytes, least recently used
+     * files are evicted first.
+     */
+    public void setProjectionCache(File _directory, long _maxSize)
+    {
+        projectionCache = _directory == null ? null : new ProjectionCache(_directory, _maxSize);
+    }
+    
+    /**
+     * Keep the initialized state of the Bio-Formats readers in a directory,
+     * the headers of a file are parsed only the first time it is opened (or
+     * when its size or last modified time changed).
+     * Must be called after setup(), ignored when batch mode is off.
+     * @param _directory the cache directory, null to disable the cache.
+     */
+    public void setReaderCacheDirectory(File _directory)
+    {
+        readerCache = _directory == null || !batchMode ? null : new ReaderCache(_directory);
+    }
+    
+    /**
+     * Save a compact metadata file (dimensions, pixel type and size of each serie)
+     * in the destination folder for each processed file.
+     * Must be called after setup().
+     * @param _metadataSidecar 
+     */
+    public void setMetadataSidecar(boolean _metadataSidecar)
+    {
+        metadataSidecar = _metadataSidecar;
+    }
+    
+    /**
+     * Use SIMD kernels (Java Vector API) for the Average, Max and Sum projections
+     * of 16-bit images. When the JVM does not support them (JDK < 17 or missing
+     * --add-modules jdk.incubator.vector), scalar kernels are used.
+     * Must be called after setup().
+     * @param _vectorized 
+     */
+    public void setVectorized(boolean _vectorized)
+    {
+        vectorized = _vectorized;
+    }
+    
+    /**
+     * Read the planes one by one and fold them into per-channel projections
+     * instead of loading the whole stacks in memory. Peak memory depends on
+     * the plane size instead of the stack size (except for the Median method
+     * which needs all the slices of a channel).
+     * Must be called after setup(), ignored when batch mode is off.
+     * @param _streaming 
+     */
+    public void setStreaming(boolean _streaming)
+    {
+        streaming = _streaming;
+    }
+    
+    /**
+     * Process the files through a pipeline made of three stages each having its
+     * own threads: read, project (threadCount threads) and write. Reading the next
+     * file overlaps projecting and writing the current ones.
+     * Must be called after setup(), ignored when batch mode is off.
+     * 
+     * @param _readerCount number of threads reading the files
+     * @param _writerCount number of threads writing the results
+     * @param _readAhead maximum number of opened files waiting to be projected,
+     * the readers wait when this limit is reached.
+     */
+    public void setPipeline(int _readerCount, int _writerCount, int _readAhead)
+    {
+        pipelined = true;
+        readerCount = Math.max(1, _readerCount);
+        writerCount = Math.max(1, _writerCount);
+        readAhead = Math.max(1, _readAhead);
+    }
+    
     public String getStatus()
     {
         return status;
     }
     
-    private void setProgress(int _progress)
+    private synchronized void setProgress(int _progress)
     {
         progress = _progress;
         if( listener != null ) listener.onProgressChange(_progress);
@@ -154,134 +673,1632 @@ public class Process<T extends RealType<T>>  implements Command
     }
     
     /**
-     * Run the process, must be called after setup()
+     * Register a file as processed (or ignored) and update progress.
+     * Can be called from any worker thread.
      */
-    @Override
-    public void run()
+    private void setFileDone(File _file, boolean _ignored)
     {
-        init();       
-        setStatus("Processing ...");
-
-        for (File file : files)
+        // written before taking the lock, other files can be done meanwhile
+        if ( zarr )
         {
-            try
+            _ignored = !saveZarr(_file, _ignored);
+        }
+        else if ( omeTiff )
+        {
+            if ( _ignored )
             {
-                setStatus(String.format("Processing file %s ...", file.toPath()));
-                ImagePlus[] allSeries = open(file);
-
-                // In case we have zero images, we skip.
-                if  ( allSeries.length > 0 )
-                {
-                   allImages.add(allSeries); 
-
-                   // At this step, each image is a serie (@see open(File) method)
-                   int serie = 0;
-                   for(ImagePlus serieImg : allSeries )
-                    {
-                        ImagePlus[] allChannels = ChannelSplitter.split(serieImg);
-
-                        // At this step, each image is a channel.
-                        int channel = 0;
-                        for (ImagePlus channelImg : allChannels)
-                        {
-                            if( !batchMode )
-                            {
-                                channelImg.show();
-                            }
-
-                            if ( channelImg.getNSlices() > 1 )
-                            {
-                                channelImg = ij.plugin.ZProjector.run(channelImg, projectorMethod );
-                            }                                
-
-                            ImageProcessor p     = channelImg.getProcessor();                                
-                            java.awt.Color color = colorPreset.getColorAt(channel);
-
-                            LUT lut = LUT.createLutFromColor(color);
-                            p.setLut(lut);
-
-                            String outputPath = String.format(
-                                    "%s%s%s_serie_%d_channel_%d.tiff",
-                                    destinationFolder.getAbsolutePath(),
-                                    File.separator,
-                                    file.getName(),
-                                    serie,
-                                    channel
-                            );
-
-                            ImagePlus out = new ImagePlus("out", p.createImage());
-
-                            if( !batchMode )
-                            {
-                                channelImg.close();
-                                out.show();
-                            }
-
-                            FileSaver saver = new FileSaver(out);
-                            saver.saveAsTiff(outputPath);
-                            channel++;
-
-
-                            if( !batchMode )
-                            {
-                                out.close();
-
-                            }
-                        }
-                        serie++;
-                    }
-
-                }                    
-                setStatus( String.format("File %s processed.", file.toPath()));
+                // a partial OME-TIFF would look complete
+                omeTiffChannels.remove(_file);
             }
-            catch (Exception ex)
+            else
             {
-                ignoredFiles.add(file);
-                Logger.getLogger(Plugin.class.getName()).log(Level.SEVERE, null, ex);
+                _ignored = !saveOmeTiff(_file);
             }
-            processedFiles.add(file);
-
-            setProgress( (int)(((float)processedFiles.size() / (float)files.size()) * 100.f) );
         }
         
-        String message = String.format(
-                "Process done, %d file(s) processed (%d ignored)"
-                + " --- Hasta la vista, baby. ^^",
-                processedFiles.size(),
-                ignoredFiles.size()
-        );
-        setStatus(message);    
+        synchronized (this)
+        {
+            setFileDoneLocked(_file, _ignored);
+        }
     }
-
-    /**
-     * Open a microscope image file
-     * @param file
-     * @return an array ob images (one per series)
-     * @throws IOException
-     * @throws FormatException 
-     */
-    private ImagePlus[] open(File file) throws IOException, FormatException   
+    
+    private void setFileDoneLocked(File _file, boolean _ignored)
     {
-  
-        ImporterOptions options = new ImporterOptions();
-        options.setId(file.getPath());  
-        options.setOpenAllSeries(true);
-        options.setSplitChannels(false);
-        options.setWindowless(true);
+        Long reserved = reservations.remove(_file);
+        if ( reserved != null )
+        {
+            memoryBudget.release(reserved);
+        }
         
-        ImportProcess process = new ImportProcess(options);
-        /*
-         * @link {loci.plugins.in.Importer.showDialogs}
-         * Goto to the source coe linked above to understand why we need this Prompter.
-         */
-        ImporterPrompter prompter = new ImporterPrompter(process);
+        if ( _ignored )
+        {
+            ignoredFiles.add(_file);
+        }
+        processedFiles.add(_file);
+        
+        if ( manifest != null && !_ignored )
+        {
+            try
+            {
+                manifest.add(_file, projectorMethod, ProcessManifest.getColorsKey(colorPreset), getFormatKey());
+            }
+            catch (IOException ex)
+            {
+                log.warn(String.format("Unable to update the manifest for %s", _file.getName()), ex);
+            }
+        }
+        setProgress( (int)(((float)processedFiles.size() / (float)files.size()) * 100.f) );
+    }
+    
+    /**
+     * Run the process, must be called after setup()
+     */
+    @Override
+    public void run()
+    {
+        init();       
+        
+        if ( recolorOutputs )
+        {
+            runRecolor();
+            return;
+        }
+        
+        setStatus("Processing ...");
+        
+        vectorKernels = vectorized ? VectorKernels.get() : null;
+        if ( vectorized && vectorKernels == null )
+        {
+            log.warn("SIMD kernels are not available on this JVM, using scalar kernels.");
+        }
+        
+        openManifest();
+        openJournal();
+
+        if ( pipelined && batchMode )
+        {
+            runPipeline();
+        }
+        else if ( threadCount > 1 )
+        {
+            runInParallel();
+        }
+        else
+        {
+            for (File file : files)
+            {
+                if ( canceled || Thread.currentThread().isInterrupted() )
+                {
+                    canceled = true;
+                    break;
+                }
+                processFile(file);
+            }
+        }
+        
+        if ( manifest != null )
+        {
+            try
+            {
+                manifest.save();
+            }
+            catch (IOException ex)
+            {
+                log.warn("Unable to save the manifest", ex);
+            }
+        }
+        
+        closeJournal();
+        
+        log.info(String.format("%.1f MB written in %.2f s (%.1f MB/s, compression: %s)",
+                bytesWritten.get() / 1e6,
+                writeNanos.get() / 1e9,
+                writeNanos.get() == 0 ? 0. : bytesWritten.get() / 1e6 / (writeNanos.get() / 1e9),
+                TiffWriter.COMPRESSIONS[compression]));
+        
+        for (File file : fallbackFiles)
+        {
+            log.warn(String.format("%s was processed with the low memory strategy", file.getName()));
+        }
+        
+        String message = String.format(
+                "Process done, %d file(s) processed (%d ignored, %d up to date, %d low memory),"
+                + " %.1f MB written in %.2f s --- Hasta la vista, baby. ^^",
+                processedFiles.size(),
+                ignoredFiles.size(),
+                upToDateCount,
+                fallbackFiles.size(),
+                bytesWritten.get() / 1e6,
+                writeNanos.get() / 1e9
+        );
+        setStatus(message);    
+    }
+    
+    /**
+     * Load the manifest of the destination folder. In incremental mode, remove
+     * the up to date files from the files to process and the outputs of the
+     * deleted files.
+     */
+    private void openManifest()
+    {
+        try
+        {
+            manifest = ProcessManifest.load(destinationFolder);
+        }
+        catch (IOException ex)
+        {
+            log.warn("Unable to read the manifest, all the files will be processed", ex);
+            manifest = null;
+            return;
+        }
+        
+        if ( !incremental )
+        {
+            return;
+        }
+        
+        String colors = ProcessManifest.getColorsKey(colorPreset);
+        String format = getFormatKey();
+        int count = files.size();
+        files.removeIf(file -> manifest.isUpToDate(file, projectorMethod, colors, format));
+        upToDateCount = count - files.size();
+        log.info(String.format("%d file(s) up to date, %d to process", upToDateCount, files.size()));
+        
+        if ( removeDeletedOutputs )
+        {
+            for (File deleted : manifest.getDeletedInputs())
+            {
+                manifest.remove(deleted);
+                int removed = deleteOutputs(deleted);
+                log.info(String.format("%s was deleted, %d output(s) removed", deleted.getName(), removed));
+            }
+        }
+    }
+    
+    /**
+     * Get the key of the output format settings (@see ProcessManifest.getFormatKey()),
+     * files processed with another format are not up to date.
+     */
+    private String getFormatKey()
+    {
+        String format = zarr ? "zarr" : omeTiff ? (omeTiffPerFile ? "ome-tiff-per-file" : "ome-tiff") : "tiff";
+        return ProcessManifest.getFormatKey(format, tiled, pyramid, TiffWriter.COMPRESSIONS[compression], keepBitDepth);
+    }
+    
+    /**
+     * Open the journal of the destination folder, load the outputs already
+     * written when resuming.
+     */
+    private void openJournal()
+    {
+        try
+        {
+            journal = ProcessJournal.open(
+                    destinationFolder,
+                    projectorMethod,
+                    ProcessManifest.getColorsKey(colorPreset),
+                    getFormatKey(),
+                    resume);
+            if ( resume )
+            {
+                log.info(String.format("Resuming, %d output(s) already written", journal.size()));
+            }
+        }
+        catch (IOException ex)
+        {
+            log.warn("Unable to open the journal, this process won't be resumable", ex);
+            journal = null;
+        }
+    }
+    
+    /**
+     * Close the journal, it is deleted when the process completed, and kept
+     * to be resumed later otherwise.
+     */
+    private void closeJournal()
+    {
+        if ( journal == null )
+        {
+            return;
+        }
+        
+        try
+        {
+            if ( canceled )
+            {
+                journal.close();
+            }
+            else
+            {
+                journal.delete();
+            }
+        }
+        catch (IOException ex)
+        {
+            log.warn("Unable to close the journal", ex);
+        }
+        journal = null;
+    }
+    
+    /**
+     * Check if the output of a serie's channel has been written by an interrupted process.
+     */
+    private boolean isCommitted(File file, int serie, int channel)
+    {
+        return journal != null && journal.isCommitted(file, serie, channel);
+    }
+    
+    /**
+     * Check whether all the outputs of a file are recorded in the journal, so
+     * that a resumed process does not open nor decode it. Only the header of
+     * the file is read (series and channel counts, like admit()), and only when
+     * its first output is committed.
+     */
+    private boolean isFileCommitted(File file) throws IOException, FormatException
+    {
+        if ( !isCommitted(file, 0, 0) )
+        {
+            return false;
+        }
+        
+        ImageProcessorReader reader = openReader(file);
+        try
+        {
+            for (int serie = 0; serie < reader.getSeriesCount(); serie++)
+            {
+                reader.setSeries(serie);
+                // one output per channel and RGB component (@see open())
+                int outputCount = reader.getEffectiveSizeC() * reader.getRGBChannelCount();
+                for (int output = 0; output < outputCount; output++)
+                {
+                    if ( !isCommitted(file, serie, output) )
+                    {
+                        return false;
+                    }
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        
+        log.debug(String.format("%s outputs are already written", file.getName()));
+        return true;
+    }
+    
+    /**
+     * Delete the outputs of a file from the destination folder.
+     * Outputs are named after the file name only, they are kept when another
+     * file with the same name is still in the manifest.
+     * @param _file
+     * @return the number of deleted outputs
+     */
+    private int deleteOutputs(File _file)
+    {
+        String name = _file.getName();
+        if ( manifest.containsName(name) )
+        {
+            return 0;
+        }
+        
+        String prefix = name + "_";
+        File[] outputs = destinationFolder.listFiles((File dir, String _name) ->
+                _name.startsWith(prefix) && (_name.endsWith(".tiff") || _name.endsWith("_metadata.txt"))
+                || _name.equals(name + ".ome.tiff")
+                || _name.startsWith(prefix) && _name.endsWith(".zarr"));
+        
+        int count = 0;
+        if ( outputs != null )
+        {
+            for (File output : outputs)
+            {
+                if ( output.isDirectory() )
+                {
+                    FileHelper.deleteDirectoryContent(output, true);
+                    count++;
+                }
+                else if ( output.delete() )
+                {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Apply the color preset to the outputs of the destination folder
+     * using threadCount workers.
+     */
+    private void runRecolor()
+    {
+        setStatus("Recoloring ...");
+        
+        Pattern outputPattern = Pattern.compile("(.*)_serie_\\d+_channel_(\\d+)\\.tiff");
+        File[] outputs = destinationFolder.listFiles((File dir, String name) -> outputPattern.matcher(name).matches());
+        if ( outputs == null )
+        {
+            outputs = new File[0];
+        }
+        
+        // progress and counts are relative to the outputs, not the source files
+        files.clear();
+        files.addAll(Arrays.asList(outputs));
+        
+        // names of the input files having recolored outputs, and of those having outputs not recolored
+        Set<String> recoloredInputs = ConcurrentHashMap.newKeySet();
+        Set<String> ignoredInputs = ConcurrentHashMap.newKeySet();
+        
+        pool = new ForkJoinPool(threadCount);
+        try
+        {
+            pool.submit(() ->
+            {
+                forEachIndex(files.size(), (int i) ->
+                {
+                    File output = files.get(i);
+                    Matcher matcher = outputPattern.matcher(output.getName());
+                    matcher.matches();
+                    boolean ignored = true;
+                    if ( !canceled )
+                    {
+                        int channel = Integer.parseInt(matcher.group(2));
+                        LUT lut = LUT.createLutFromColor(colorPreset.getColorAt(channel));
+                        try
+                        {
+                            ignored = !TiffRecolorer.recolor(output, lut);
+                            if ( ignored )
+                            {
+                                log.warn(String.format("%s has no color map, it must be processed again", output.getName()));
+                            }
+                        }
+                        catch (IOException ex)
+                        {
+                            log.warn(String.format("Unable to recolor %s", output.getName()), ex);
+                        }
+                    }
+                    (ignored ? ignoredInputs : recoloredInputs).add(matcher.group(1));
+                    synchronized (this)
+                    {
+                        if ( ignored )
+                        {
+                            ignoredFiles.add(output);
+                        }
+                        processedFiles.add(output);
+                        setProgress( (int)(((float)processedFiles.size() / (float)files.size()) * 100.f) );
+                    }
+                });
+                return null;
+            }).get();
+        }
+        catch (InterruptedException ex)
+        {
+            canceled = true;
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException ex)
+        {
+            Logger.getLogger(Plugin.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        finally
+        {
+            pool.shutdownNow();
+            pool = null;
+        }
+        
+        // only the inputs whose outputs were all recolored are up to date, the others
+        // (outputs not recolored, or in a format without per-channel TIFFs) must be processed again
+        recoloredInputs.removeAll(ignoredInputs);
+        if ( !recoloredInputs.isEmpty() )
+        {
+            try
+            {
+                ProcessManifest outputManifest = ProcessManifest.load(destinationFolder);
+                outputManifest.setColors(ProcessManifest.getColorsKey(colorPreset), recoloredInputs);
+                outputManifest.save();
+            }
+            catch (IOException ex)
+            {
+                log.warn("Unable to update the manifest", ex);
+            }
+        }
+        
+        setStatus(String.format(
+                "Recolor done, %d output(s) recolored (%d ignored)",
+                processedFiles.size() - ignoredFiles.size(),
+                ignoredFiles.size()
+        ));
+    }
+    
+    /**
+     * Process all the files concurrently using threadCount workers.
+     * Interrupting the thread running this method cancels the remaining files.
+     */
+    private void runInParallel()
+    {
+        pool = new ForkJoinPool(threadCount);
+        
+        try
+        {
+            ForkJoinTask<Void> root = pool.submit(() ->
+            {
+                forEachIndex(files.size(), (int i) -> processFile(files.get(i)));
+                return null;
+            });
+            root.get();
+        }
+        catch (InterruptedException ex)
+        {
+            canceled = true;
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException ex)
+        {
+            Logger.getLogger(Plugin.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        finally
+        {
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+    
+    /**
+     * Process all the files through the read -> project -> write stages.
+     * Each stage has its own threads and a bounded input queue, a stage waits when
+     * the next one is full so opened images cannot pile up in memory.
+     */
+    private void runPipeline()
+    {
+        PipelineStage<ChannelOutput> writeStage = new PipelineStage<>(
+                "write", writerCount, 2 * writerCount, this::writeChannel);
+        
+        PipelineStage<FileJob> projectStage = new PipelineStage<>(
+                "project", threadCount, readAhead, (FileJob job) -> projectFile(job, writeStage));
+        
+        PipelineStage<FileJob> readStage = new PipelineStage<>(
+                "read", readerCount, files.size(), (FileJob job) -> readFile(job, projectStage));
+        
+        try
+        {
+            for (File file : files)
+            {
+                readStage.put(new FileJob(file));
+            }
+            readStage.close();
+            projectStage.close();
+            writeStage.close();
+        }
+        catch (InterruptedException ex)
+        {
+            canceled = true;
+            readStage.cancel();
+            projectStage.cancel();
+            writeStage.cancel();
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Pipeline read stage: open a file and pass it to the project stage.
+     */
+    private void readFile(FileJob _job, PipelineStage<FileJob> _next) throws InterruptedException
+    {
+        if ( canceled )
+        {
+            return;
+        }
+        
+        try
+        {
+            setStatus(String.format("Reading file %s ...", _job.file.toPath()));
+            if ( isFileCommitted(_job.file) )
+            {
+                setFileDone(_job.file, false);
+                return;
+            }
+            
+            if ( tiled )
+            {
+                // tiles are projected and written by the workers, nothing to pass
+                processTiled(_job.file);
+                setFileDone(_job.file, false);
+                return;
+            }
+            
+            _job.projected = getCachedProjections(_job.file);
+            if ( _job.projected != null )
+            {
+                log.debug(String.format("%s projections read from cache", _job.file.getName()));
+            }
+            else if ( streaming )
+            {
+                _job.projected = openProjected(_job.file);
+                cacheProjections(_job.file, _job.projected);
+            }
+            else
+            {
+                _job.allSeries = open(_job.file);
+            }
+        }
+        catch (PlaneTooLargeException ex)
+        {
+            setFileDone(_job.file, !processTiledAfter(_job.file, ex));
+            return;
+        }
+        catch (OutOfMemoryError error)
+        {
+            _job.allSeries = null;
+            _job.projected = openProjectedLowMemory(_job.file, error);
+            if ( _job.projected == null )
+            {
+                setFileDone(_job.file, true);
+                return;
+            }
+        }
+        catch (Exception ex)
+        {
+            Logger.getLogger(Plugin.class.getName()).log(Level.SEVERE, null, ex);
+            setFileDone(_job.file, true);
+            return;
+        }
+        _next.put(_job);
+    }
+    
+    /**
+     * Pipeline project stage: split, project and colorize each channel of each serie
+     * and pass them to the write stage.
+     */
+    private void projectFile(FileJob _job, PipelineStage<ChannelOutput> _next) throws InterruptedException
+    {
+        try
+        {
+            if ( _job.projected != null )
+            {
+                ImageProcessor[][] projected = _job.projected;
+                _job.projected = null;
+                for (int serie = 0; serie < projected.length && !canceled; serie++)
+                {
+                    for (int channel = 0; channel < projected[serie].length && !canceled; channel++)
+                    {
+                        if ( isCommitted(_job.file, serie, channel) || !_job.queue(serie, channel) )
+                        {
+                            continue;
+                        }
+                        ImageProcessor p = projected[serie][channel];
+                        colorize(p, channel);
+                        _job.pending.incrementAndGet();
+                        _next.put(new ChannelOutput(_job, serie, channel, p));
+                    }
+                }
+                releaseJob(_job);
+                return;
+            }
+            
+            setStatus(String.format("Projecting file %s ...", _job.file.toPath()));
+            ImagePlus[] allSeries = _job.allSeries;
+            _job.allSeries = null;
+            
+            ImageProcessor[][] projected = new ImageProcessor[allSeries.length][];
+            for (int serie = 0; serie < allSeries.length && !canceled; serie++)
+            {
+                ChannelView[] allChannels = ChannelView.of(allSeries[serie]);
+                allSeries[serie] = null; // released once its channels are projected
+                projected[serie] = new ImageProcessor[allChannels.length];
+                for (int channel = 0; channel < allChannels.length && !canceled; channel++)
+                {
+                    if ( isCommitted(_job.file, serie, channel) )
+                    {
+                        continue;
+                    }
+                    ImageProcessor p = project(allChannels[channel]);
+                    projected[serie][channel] = p;
+                    colorize(p, channel);
+                    _job.queue(serie, channel);
+                    _job.pending.incrementAndGet();
+                    _next.put(new ChannelOutput(_job, serie, channel, p));
+                }
+            }
+            cacheProjections(_job.file, projected);
+        }
+        catch (InterruptedException ex)
+        {
+            throw ex;
+        }
+        catch (OutOfMemoryError error)
+        {
+            // the file is projected again, channels already passed to the write stage are not queued twice
+            _job.projected = openProjectedLowMemory(_job.file, error);
+            if ( _job.projected != null )
+            {
+                // this call releases the job
+                projectFile(_job, _next);
+                return;
+            }
+            _job.failed = true;
+        }
+        catch (Exception ex)
+        {
+            _job.failed = true;
+            Logger.getLogger(Plugin.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        releaseJob(_job);
+    }
+    
+    /**
+     * Pipeline write stage: save a channel.
+     */
+    private void writeChannel(ChannelOutput _output)
+    {
+        try
+        {
+            save(_output.job.file, _output.serie, _output.channel, _output.processor);
+        }
+        catch (Exception ex)
+        {
+            _output.job.failed = true;
+            Logger.getLogger(Plugin.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        releaseJob(_output.job);
+    }
+    
+    private void releaseJob(FileJob _job)
+    {
+        if ( _job.pending.decrementAndGet() == 0 )
+        {
+            setStatus( String.format("File %s processed.", _job.file.toPath()));
+            setFileDone(_job.file, _job.failed);
+        }
+    }
+    
+    /**
+     * Run _task for each index in [0, _count).
+     * 
+     * When called from a worker of the process pool, one sub-task is forked per index
+     * so idle workers can steal them (a single file with many series/channels will
+     * use all the workers). Otherwise the tasks are run one after another.
+     * 
+     * @param _count
+     * @param _task
+     * @throws Exception the first exception thrown by a task.
+     */
+    private void forEachIndex(int _count, IndexedTask _task) throws Exception
+    {
+        if ( _count > 1 && pool != null && ForkJoinTask.getPool() == pool )
+        {
+            List<ForkJoinTask<Void>> tasks = new ArrayList<>(_count);
+            for (int i = 0; i < _count; i++)
+            {
+                final int index = i;
+                tasks.add(ForkJoinTask.adapt(() ->
+                {
+                    _task.run(index);
+                    return null;
+                }));
+            }
+            ForkJoinTask.invokeAll(tasks);
+        }
+        else
+        {
+            for (int i = 0; i < _count; i++)
+            {
+                _task.run(i);
+            }
+        }
+    }
+
+    /**
+     * Process a single file: open it, split and project each channel of each serie,
+     * apply the LUT and save the result in destinationFolder.
+     * Thread safe, can be called concurrently for different files.
+     */
+    private void processFile(File file)
+    {
+        if ( canceled )
+        {
+            return;
+        }
+        
+        boolean ignored = false;
+        try
+        {
+            setStatus(String.format("Processing file %s ...", file.toPath()));
+            
+            if ( isFileCommitted(file) )
+            {
+                setFileDone(file, false);
+                return;
+            }
+            
+            if ( tiled )
+            {
+                processTiled(file);
+                setFileDone(file, false);
+                return;
+            }
+            
+            ImageProcessor[][] projected = getCachedProjections(file);
+            if ( projected == null && streaming && batchMode )
+            {
+                projected = openProjected(file);
+                cacheProjections(file, projected);
+            }
+            
+            if ( projected != null )
+            {
+                saveProjected(file, projected);
+                setStatus( String.format("File %s processed.", file.toPath()));
+                setFileDone(file, false);
+                return;
+            }
+            
+            ImagePlus[] allSeries = open(file);
+
+            // In case we have zero images, we skip.
+            if  ( allSeries.length > 0 )
+            {
+               // At this step, each image is a serie (@see open(File) method)
+               // Series are released as soon as they are processed, projections are only kept for the cache.
+               ImageProcessor[][] allProjected = projectionCache != null ? new ImageProcessor[allSeries.length][] : null;
+               forEachIndex(allSeries.length, (int serie) ->
+               {
+                   ImagePlus serieImg = allSeries[serie];
+                   allSeries[serie] = null;
+                   ImageProcessor[] serieProjected = processSerie(file, serieImg, serie);
+                   if ( allProjected != null )
+                   {
+                       allProjected[serie] = serieProjected;
+                   }
+               });
+               if ( allProjected != null )
+               {
+                   cacheProjections(file, allProjected);
+               }
+            }                    
+            setStatus( String.format("File %s processed.", file.toPath()));
+        }
+        catch (PlaneTooLargeException ex)
+        {
+            ignored = !processTiledAfter(file, ex);
+        }
+        catch (OutOfMemoryError error)
+        {
+            // references to the opened series are dropped when leaving the try block
+            ignored = !processLowMemory(file, error);
+        }
+        catch (Exception ex)
+        {
+            ignored = true;
+            Logger.getLogger(Plugin.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        setFileDone(file, ignored);
+    }
+    
+    /**
+     * Process a file again after an OutOfMemoryError, with the low memory strategy:
+     * planes are read one by one from a virtual reader and projected while reading.
+     * The file is reported as a fallback file (@see getFallbackFiles()).
+     * @param file
+     * @param error the error thrown by the first attempt
+     * @return true if the file has been processed.
+     */
+    private boolean processLowMemory(File file, OutOfMemoryError error)
+    {
+        if ( streaming && batchMode )
+        {
+            // already plane by plane, tiles are the last resort
+            synchronized (fallbackFiles)
+            {
+                fallbackFiles.add(file);
+            }
+            return processTiledAfter(file, error);
+        }
+        
+        ImageProcessor[][] projected = openProjectedLowMemory(file, error);
+        if ( projected == null )
+        {
+            return false;
+        }
+        
+        try
+        {
+            saveProjected(file, projected);
+            setStatus( String.format("File %s processed (low memory).", file.toPath()));
+            return true;
+        }
+        catch (Exception | OutOfMemoryError ex)
+        {
+            Logger.getLogger(Plugin.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        }
+    }
+    
+    /**
+     * Open and project a file plane by plane after an OutOfMemoryError.
+     * @param file
+     * @param error the error thrown by the first attempt
+     * @return projected channels indexed by [serie][channel], null if the file can't be processed.
+     */
+    private ImageProcessor[][] openProjectedLowMemory(File file, OutOfMemoryError error)
+    {
+        if ( streaming && batchMode )
+        {
+            // already the low memory strategy
+            log.error(String.format("Out of memory while processing %s plane by plane", file.getName()), error);
+            return null;
+        }
+        
+        log.warn(String.format("Out of memory while processing %s, retrying plane by plane", file.getName()));
+        synchronized (fallbackFiles)
+        {
+            fallbackFiles.add(file);
+        }
+        
+        // the budget reserved for the whole file is replaced by the plane by plane estimation
+        Long reserved = reservations.remove(file);
+        if ( reserved != null )
+        {
+            memoryBudget.release(reserved);
+        }
+        
+        try
+        {
+            ImageProcessor[][] projected = openProjected(file);
+            cacheProjections(file, projected);
+            return projected;
+        }
+        catch (Exception | OutOfMemoryError ex)
+        {
+            Logger.getLogger(Plugin.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+    }
+    
+    /**
+     * Process a file by tiles after a failure of the other strategies.
+     * @param file
+     * @param cause why the file is processed by tiles
+     * @return true if the file has been processed.
+     */
+    private boolean processTiledAfter(File file, Throwable cause)
+    {
+        log.info(String.format("%s, processing it by tiles", cause.getMessage()));
+        
+        Long reserved = reservations.remove(file);
+        if ( reserved != null )
+        {
+            memoryBudget.release(reserved);
+        }
+        
+        try
+        {
+            processTiled(file);
+            setStatus( String.format("File %s processed (tiled).", file.toPath()));
+            return true;
+        }
+        catch (Exception | OutOfMemoryError ex)
+        {
+            Logger.getLogger(Plugin.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        }
+    }
+    
+    /**
+     * Process a file by tiles: each tile of each channel is read through the
+     * Bio-Formats reader, projected and written to a tiled output by the workers.
+     * Only a few tiles are in memory at a time.
+     * @param file
+     * @throws Exception 
+     */
+    private void processTiled(File file) throws Exception
+    {
+        ImageProcessorReader reader = openReader(file);
+        try
+        {
+            for (int serie = 0; serie < reader.getSeriesCount() && !canceled; serie++)
+            {
+                processTiledSerie(file, reader, serie);
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+    
+    /**
+     * Process a serie by tiles (@see processTiled()).
+     * Reads are serialized (readers are not thread safe), projections and writes
+     * run in parallel.
+     */
+    private void processTiledSerie(File file, ImageProcessorReader reader, int serie) throws Exception
+    {
+        reader.setSeries(serie);
+        int sizeX = reader.getSizeX();
+        int sizeY = reader.getSizeY();
+        int sizeZ = reader.getSizeZ();
+        int channelCount = reader.getEffectiveSizeC();
+        
+        // RGB planes are read as one processor per component, each of them being a channel
+        int rgbChannelCount = reader.getRGBChannelCount();
+        int outputCount = channelCount * rgbChannelCount;
+        int tilesX = (sizeX + TILE_SIZE - 1) / TILE_SIZE;
+        int tilesY = (sizeY + TILE_SIZE - 1) / TILE_SIZE;
+        
+        // like the importer, signed 16-bit tiles are read shifted by 32768
+        boolean signed16Bit = reader.getPixelType() == FormatTools.INT16;
+        
+        boolean[] skipped = new boolean[outputCount];
+        File[] partFiles = new File[outputCount];
+        for (int output = 0; output < outputCount; output++)
+        {
+            skipped[output] = isCommitted(file, serie, output);
+            partFiles[output] = new File(getOutputPath(file, serie, output) + ".part");
+        }
+        
+        // writers are created with the first tile, its type gives the bit depth
+        TiledTiffWriter[] writers = new TiledTiffWriter[outputCount];
+        boolean done = false;
+        try
+        {
+            // Z-order completes the reduced tiles of pyramids as soon as possible
+            int[] order = TiledTiffWriter.getTileOrder(tilesX, tilesY);
+            forEachIndex(order.length, (int i) ->
+            {
+                int tile = order[i];
+                int tileX = tile % tilesX;
+                int tileY = tile / tilesX;
+                int x = tileX * TILE_SIZE;
+                int y = tileY * TILE_SIZE;
+                int w = Math.min(TILE_SIZE, sizeX - x);
+                int h = Math.min(TILE_SIZE, sizeY - y);
+                
+                for (int c = 0; c < channelCount && !canceled; c++)
+                {
+                    ImageProcessor[] projected = new ImageProcessor[rgbChannelCount];
+                    ProjectionAccumulator[] accumulators = new ProjectionAccumulator[rgbChannelCount];
+                    for (int k = 0; k < rgbChannelCount; k++)
+                    {
+                        accumulators[k] = new ProjectionAccumulator(projectorMethod, w, h, signed16Bit, vectorKernels);
+                    }
+                    
+                    // Like ZProjector, we project the slices of the first frame
+                    for (int z = 0; z < sizeZ; z++)
+                    {
+                        ImageProcessor[] planes;
+                        synchronized (reader)
+                        {
+                            planes = reader.openProcessors(reader.getIndex(z, c, 0), x, y, w, h);
+                        }
+                        for (int k = 0; k < planes.length; k++)
+                        {
+                            if ( sizeZ == 1 )
+                            {
+                                projected[k] = planes[k];
+                            }
+                            else
+                            {
+                                accumulators[k].add(planes[k]);
+                            }
+                        }
+                    }
+                    
+                    for (int k = 0; k < rgbChannelCount; k++)
+                    {
+                        int output = c * rgbChannelCount + k;
+                        if ( skipped[output] )
+                        {
+                            continue;
+                        }
+                        ImageProcessor p = sizeZ == 1 ? projected[k] : accumulators[k].getResult();
+                        long start = System.nanoTime();
+                        getTiledWriter(writers, output, partFiles[output], sizeX, sizeY, p).writeTile(tileX, tileY, p);
+                        writeNanos.addAndGet(System.nanoTime() - start);
+                    }
+                }
+            });
+            done = !canceled;
+        }
+        finally
+        {
+            for (int output = 0; output < outputCount; output++)
+            {
+                if ( writers[output] != null )
+                {
+                    writers[output].close();
+                    if ( !done )
+                    {
+                        partFiles[output].delete();
+                    }
+                }
+            }
+        }
+        
+        if ( !done )
+        {
+            // canceled, the partial outputs are deleted
+            return;
+        }
+        
+        for (int output = 0; output < outputCount; output++)
+        {
+            if ( writers[output] != null )
+            {
+                bytesWritten.addAndGet(partFiles[output].length());
+                Files.move(partFiles[output].toPath(), Paths.get(getOutputPath(file, serie, output)),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                if ( journal != null )
+                {
+                    journal.commit(file, serie, output);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Get the writer of a tiled output, create it if needed.
+     * @param writers writers indexed by output
+     * @param first the first tile written, gives the bit depth
+     */
+    private TiledTiffWriter getTiledWriter(TiledTiffWriter[] writers, int output, File partFile, int width, int height, ImageProcessor first) throws IOException
+    {
+        synchronized (writers)
+        {
+            if ( writers[output] == null )
+            {
+                LUT lut = LUT.createLutFromColor(colorPreset.getColorAt(output));
+                int levelCount = pyramid ? TiledTiffWriter.getLevelCount(width, height, TILE_SIZE) : 1;
+                writers[output] = new TiledTiffWriter(partFile, width, height, TILE_SIZE, first.getBitDepth(), lut, levelCount, compression);
+            }
+            return writers[output];
+        }
+    }
+    
+    /**
+     * Get the files processed with the low memory strategy by the last run(),
+     * after an OutOfMemoryError.
+     * @return 
+     */
+    public List<File> getFallbackFiles()
+    {
+        synchronized (fallbackFiles)
+        {
+            return new ArrayList<>(fallbackFiles);
+        }
+    }
+    
+    /**
+     * Apply the LUTs to projected channels and save them.
+     * @param projected channels indexed by [serie][channel]
+     */
+    private void saveProjected(File file, ImageProcessor[][] projected) throws Exception
+    {
+        forEachIndex(projected.length, (int serie) -> 
+            forEachIndex(projected[serie].length, (int channel) ->
+            {
+                if ( canceled || isCommitted(file, serie, channel) )
+                {
+                    return;
+                }
+                ImageProcessor p = projected[serie][channel];
+                colorize(p, channel);
+                save(file, serie, channel, p);
+            })
+        );
+    }
+    
+    /**
+     * Process each channel of a serie.
+     * @return the projected channels (null for the channels not processed) to
+     * store in the projection cache, null when there is no cache (each channel
+     * is released once saved).
+     */
+    private ImageProcessor[] processSerie(File file, ImagePlus serieImg, int serie) throws Exception
+    {
+        ChannelView[] allChannels = ChannelView.of(serieImg);
+        ImageProcessor[] projected = projectionCache != null ? new ImageProcessor[allChannels.length] : null;
+
+        // At this step, each view is a channel (planes are not copied).
+        forEachIndex(allChannels.length, (int channel) ->
+        {
+            ImageProcessor p = processChannel(file, serie, channel, allChannels[channel]);
+            if ( projected != null )
+            {
+                projected[channel] = p;
+            }
+        });
+        return projected;
+    }
+    
+    /**
+     * Project a channel, apply its LUT and save it as tiff.
+     * @return the projected channel, null if it is not processed (canceled or already written)
+     */
+    private ImageProcessor processChannel(File file, int serie, int channel, ChannelView channelView) throws IOException
+    {
+        if ( canceled || isCommitted(file, serie, channel) )
+        {
+            return null;
+        }
+        
+        ImagePlus channelImg = null;
+        if( !batchMode )
+        {
+            channelImg = channelView.toImagePlus(getOutputName(file, serie, channel));
+            channelImg.show();
+        }
+
+        ImageProcessor p = project(channelView);
+        colorize(p, channel);
+
+        if( channelImg != null )
+        {
+            channelImg.close();
+        }
+
+        save(file, serie, channel, p);
+        return p;
+    }
+    
+    /**
+     * Get the projected channels of a file from the projection cache.
+     * @return the channels indexed by [serie][channel], null if not cached
+     */
+    private ImageProcessor[][] getCachedProjections(File file)
+    {
+        if ( projectionCache == null )
+        {
+            return null;
+        }
+        
+        try
+        {
+            return projectionCache.get(file, projectorMethod);
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            log.warn(String.format("Unable to read cached projections of %s", file.getName()), ex);
+            return null;
+        }
+    }
+    
+    /**
+     * Store the projected channels of a file in the projection cache,
+     * ignored if some channels are missing.
+     * @param projected channels indexed by [serie][channel]
+     */
+    private void cacheProjections(File file, ImageProcessor[][] projected)
+    {
+        if ( projectionCache == null || canceled )
+        {
+            return;
+        }
+        
+        for (ImageProcessor[] serie : projected)
+        {
+            if ( serie == null || Arrays.asList(serie).contains(null) )
+            {
+                return;
+            }
+        }
+        
+        try
+        {
+            if ( !projectionCache.put(file, projectorMethod, projected) )
+            {
+                log.debug(String.format("%s projections are too large to be cached", file.getName()));
+            }
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            // the outputs are already written, a cache failure does not ignore the file
+            log.warn(String.format("Unable to cache projections of %s", file.getName()), ex);
+        }
+    }
+    
+    /**
+     * Project the slices of a channel (if it has more than one slice).
+     * Like ZProjector, only the slices of the first frame are projected.
+     * @param channelView
+     * @return the projected image processor
+     */
+    private ImageProcessor project(ChannelView channelView)
+    {
+        if ( channelView.getSliceCount() > 1 )
+        {
+            if ( !ProjectionAccumulator.isSupported(channelView.getProcessor(0)) )
+            {
+                // RGB images are not supported by our projection kernels
+                ImagePlus channelImg = channelView.toImagePlus("channel");
+                return ZProjector.run(channelImg, PROJECTION_KEYS[ProjectionAccumulator.getMethod(projectorMethod)]).getProcessor();
+            }
+            
+            ProjectionAccumulator accumulator = new ProjectionAccumulator(
+                    projectorMethod,
+                    channelView.getWidth(),
+                    channelView.getHeight(),
+                    channelView.isSigned16Bit(),
+                    vectorKernels
+            );
+            
+            for (int z = 0; z < channelView.getSliceCount(); z++)
+            {
+                accumulator.add(channelView.getProcessor(z));
+            }
+            return accumulator.getResult();
+        }                                
+        return channelView.getProcessor(0);
+    }
+    
+    /**
+     * Apply the LUT of the color preset to a given channel.
+     */
+    private void colorize(ImageProcessor p, int channel)
+    {
+        java.awt.Color color = colorPreset.getColorAt(channel);
+
+        LUT lut = LUT.createLutFromColor(color);
+        p.setLut(lut);
+    }
+    
+    /**
+     * Get the name (without extension) of the output of a given channel.
+     */
+    private static String getOutputName(File file, int serie, int channel)
+    {
+        return String.format("%s_serie_%d_channel_%d", file.getName(), serie, channel);
+    }
+    
+    /**
+     * Get the path of the output of a given channel in destinationFolder.
+     */
+    private String getOutputPath(File file, int serie, int channel)
+    {
+        return String.format(
+                "%s%s%s.tiff",
+                destinationFolder.getAbsolutePath(),
+                File.separator,
+                getOutputName(file, serie, channel)
+        );
+    }
+    
+    /**
+     * Save a projected channel to destinationFolder and record it in the journal.
+     * The output is written to a temporary file first, an interrupted process
+     * can't leave a truncated output.
+     */
+    private void save(File file, int serie, int channel, ImageProcessor p) throws IOException
+    {
+        String outputName = getOutputName(file, serie, channel);
+        String outputPath = getOutputPath(file, serie, channel);
+
+        // Like the display, 8-bit outputs are scaled using the display range.
+        ImageProcessor output = keepBitDepth || p.getBitDepth() == 8 || p.getBitDepth() == 24 ? p : p.convertToByte(true);
+        // closing a shown image flushes its pixels, output may be cached or still used by the caller
+        ImagePlus out = new ImagePlus("out", batchMode ? output : output.duplicate());
+
+        if( !batchMode )
+        {
+            out.show();
+        }
+        
+        if ( zarr )
+        {
+            saveZarrChannel(file, serie, channel, output.getBitDepth() == 24 ? output.convertToByte(false) : output);
+            if( !batchMode )
+            {
+                out.close();
+            }
+            return;
+        }
+        
+        if ( omeTiff )
+        {
+            // saved with the other channels of the file (@see saveOmeTiff())
+            SortedMap<Integer, SortedMap<Integer, ImageProcessor>> series = omeTiffChannels.computeIfAbsent(file, (File key) -> new TreeMap<>());
+            synchronized (series)
+            {
+                series.computeIfAbsent(serie, (Integer key) -> new TreeMap<>())
+                        .put(channel, output.getBitDepth() == 24 ? output.convertToByte(false) : output);
+            }
+            if( !batchMode )
+            {
+                out.close();
+            }
+            return;
+        }
+
+        String partPath = outputPath + ".part";
+        long start = System.nanoTime();
+        if ( output.getBitDepth() == 24 )
+        {
+            // RGB (ZProjector fallback) has no LUT
+            FileSaver saver = new FileSaver(out);
+            if ( !saver.saveAsTiff(partPath) )
+            {
+                throw new IOException(String.format("Unable to write %s", partPath));
+            }
+            bytesWritten.addAndGet(new File(partPath).length());
+        }
+        else if ( pyramid )
+        {
+            ForkJoinPool tilePool = pool != null ? pool : ForkJoinPool.commonPool();
+            bytesWritten.addAndGet(TiledTiffWriter.write(new File(partPath), output, p.getLut(), TILE_SIZE, compression, tilePool));
+        }
+        else
+        {
+            ForkJoinPool compressionPool = pool != null ? pool : ForkJoinPool.commonPool();
+            bytesWritten.addAndGet(TiffWriter.write(new File(partPath), output, p.getLut(), compression, compressionPool));
+        }
+        writeNanos.addAndGet(System.nanoTime() - start);
+        
+        Files.move(Paths.get(partPath), Paths.get(outputPath), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        
+        if ( journal != null )
+        {
+            journal.commit(file, serie, channel);
+        }
+        
+        if ( resultCache != null )
+        {
+            resultCache.put(outputName, output);
+        }
+
+        if( !batchMode )
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Write the chunks of a channel to the Zarr image of its serie, in parallel.
+     * The image is a temporary directory until its file is done (@see saveZarr()).
+     */
+    private void saveZarrChannel(File file, int serie, int channel, ImageProcessor p) throws IOException
+    {
+        File image = new File(getZarrPath(file, serie) + ".part");
+        Files.createDirectories(new File(image, ZarrWriter.ARRAY).toPath());
+        
+        int chunksX = ZarrWriter.getChunkCount(p.getWidth(), TILE_SIZE);
+        int chunksY = ZarrWriter.getChunkCount(p.getHeight(), TILE_SIZE);
+        long start = System.nanoTime();
+        try
+        {
+            forEachIndex(chunksX * chunksY, (int chunk) ->
+            {
+                bytesWritten.addAndGet(ZarrWriter.writeChunk(image, channel, chunk % chunksX, chunk / chunksX, p, TILE_SIZE));
+            });
+        }
+        catch (IOException ex)
+        {
+            throw ex;
+        }
+        catch (Exception ex)
+        {
+            throw new IOException(ex);
+        }
+        writeNanos.addAndGet(System.nanoTime() - start);
+        
+        SortedMap<Integer, ZarrSerie> series = zarrSeries.computeIfAbsent(file, (File key) -> new TreeMap<>());
+        synchronized (series)
+        {
+            series.computeIfAbsent(serie, (Integer key) -> new ZarrSerie(p.getWidth(), p.getHeight(), ZarrWriter.getBitDepth(p)))
+                    .ranges.put(channel, new double[] { p.getMin(), p.getMax() });
+        }
+    }
+    
+    /**
+     * Write the metadata of the Zarr images of a file and move them to their
+     * final location, or delete them when the file is ignored.
+     * @param file
+     * @param ignored
+     * @return false if the file is ignored or its images could not be saved
+     */
+    private boolean saveZarr(File file, boolean ignored)
+    {
+        SortedMap<Integer, ZarrSerie> series = zarrSeries.remove(file);
+        if ( series == null )
+        {
+            // all the outputs are already written (resumed) or the file was processed by tiles
+            return !ignored;
+        }
+        
+        try
+        {
+            for (Map.Entry<Integer, ZarrSerie> entry : series.entrySet())
+            {
+                int serie = entry.getKey();
+                ZarrSerie zarrSerie = entry.getValue();
+                File part = new File(getZarrPath(file, serie) + ".part");
+                if ( ignored )
+                {
+                    // a partial image would look complete
+                    FileHelper.deleteDirectoryContent(part, true);
+                    continue;
+                }
                 
-        process.execute();
+                int channelCount = zarrSerie.ranges.lastKey() + 1;
+                java.awt.Color[] colors = new java.awt.Color[channelCount];
+                double[][] ranges = new double[channelCount][];
+                for (int channel = 0; channel < channelCount; channel++)
+                {
+                    colors[channel] = colorPreset.getColorAt(channel);
+                    ranges[channel] = zarrSerie.ranges.getOrDefault(channel, new double[] { 0, 0 });
+                }
+                bytesWritten.addAndGet(ZarrWriter.writeMetadata(part, String.format("%s_serie_%d", file.getName(), serie),
+                        zarrSerie.width, zarrSerie.height, zarrSerie.bitDepth, TILE_SIZE, colors, ranges));
+                
+                File image = new File(getZarrPath(file, serie));
+                if ( image.exists() )
+                {
+                    FileHelper.deleteDirectoryContent(image, true);
+                }
+                Files.move(part.toPath(), image.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                
+                if ( journal != null )
+                {
+                    for (int channel : zarrSerie.ranges.keySet())
+                    {
+                        journal.commit(file, serie, channel);
+                    }
+                }
+            }
+            return !ignored;
+        }
+        catch (IOException ex)
+        {
+            Logger.getLogger(Plugin.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        }
+    }
+    
+    /**
+     * Get the path of the Zarr image of a given serie in destinationFolder.
+     */
+    private String getZarrPath(File file, int serie)
+    {
+        return String.format(
+                "%s%s%s_serie_%d.zarr",
+                destinationFolder.getAbsolutePath(),
+                File.separator,
+                file.getName(),
+                serie
+        );
+    }
+    
+    /**
+     * Save the channels of a file collected by save() to OME-TIFF,
+     * one per serie or one for all the series (@see setOmeTiff()).
+     * @param file
+     * @return false if an OME-TIFF could not be written
+     */
+    private boolean saveOmeTiff(File file)
+    {
+        SortedMap<Integer, SortedMap<Integer, ImageProcessor>> series = omeTiffChannels.remove(file);
+        if ( series == null )
+        {
+            // all the outputs are already written (resumed) or the file was processed by tiles
+            return true;
+        }
+        
+        try
+        {
+            if ( omeTiffPerFile )
+            {
+                saveOmeTiff(file, series, getOmeTiffPath(file, -1));
+            }
+            else
+            {
+                for (int serie : series.keySet())
+                {
+                    saveOmeTiff(file, series.subMap(serie, serie + 1), getOmeTiffPath(file, serie));
+                }
+            }
+            return true;
+        }
+        catch (IOException ex)
+        {
+            Logger.getLogger(Plugin.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        }
+    }
+    
+    /**
+     * Save some series of a file to an OME-TIFF and record their channels in the journal.
+     */
+    private void saveOmeTiff(File file, SortedMap<Integer, SortedMap<Integer, ImageProcessor>> series, String outputPath) throws IOException
+    {
+        String[] names = new String[series.size()];
+        ImageProcessor[][] images = new ImageProcessor[series.size()][];
+        int channelCount = 0;
+        int i = 0;
+        for (Map.Entry<Integer, SortedMap<Integer, ImageProcessor>> entry : series.entrySet())
+        {
+            names[i] = String.format("%s_serie_%d", file.getName(), entry.getKey());
+            images[i] = entry.getValue().values().toArray(new ImageProcessor[0]);
+            channelCount = Math.max(channelCount, images[i].length);
+            i++;
+        }
+        
+        java.awt.Color[] colors = new java.awt.Color[channelCount];
+        for (int channel = 0; channel < channelCount; channel++)
+        {
+            colors[channel] = colorPreset.getColorAt(channel);
+        }
+        
+        String partPath = outputPath + ".part";
+        long start = System.nanoTime();
+        ForkJoinPool compressionPool = pool != null ? pool : ForkJoinPool.commonPool();
+        bytesWritten.addAndGet(OmeTiffWriter.write(new File(partPath), names, images, colors, compression, compressionPool));
+        writeNanos.addAndGet(System.nanoTime() - start);
+        
+        Files.move(Paths.get(partPath), Paths.get(outputPath), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        
+        if ( journal != null )
+        {
+            for (Map.Entry<Integer, SortedMap<Integer, ImageProcessor>> entry : series.entrySet())
+            {
+                for (int channel : entry.getValue().keySet())
+                {
+                    journal.commit(file, entry.getKey(), channel);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Get the path of the OME-TIFF of a given serie in destinationFolder.
+     * @param serie serie index, or -1 for the OME-TIFF holding all the series
+     */
+    private String getOmeTiffPath(File file, int serie)
+    {
+        return String.format(
+                "%s%s%s.ome.tiff",
+                destinationFolder.getAbsolutePath(),
+                File.separator,
+                serie < 0 ? file.getName() : String.format("%s_serie_%d", file.getName(), serie)
+        );
+    }
+
+    /**
+     * Open a microscope image file
+     * @param file
+     * @return an array ob images (one per series)
+     * @throws IOException
+     * @throws FormatException 
+     * @throws InterruptedException while waiting for the memory budget (@see admit())
+     * @throws PlaneTooLargeException when the file must be processed by tiles
+     */
+    private ImagePlus[] open(File file) throws IOException, FormatException, InterruptedException, PlaneTooLargeException
+    {
+        if ( readerCache != null || batchMode )
+        {
+            // In batch mode nothing is displayed, the ImportProcess and its metadata are not needed.
+            ImageProcessorReader reader = readerCache != null ? readerCache.open(file, getMetadataLevel()) : createReader(file);
+            try
+            {
+                saveMetadataSidecar(file, reader, (IMetadata) reader.getMetadataStore());
+                checkPlaneSize(file, reader);
+                admit(file, reader, false);
+                return readAllSeries(reader);
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        
+        ImportProcess process = createImportProcess(file, false);
 
         log.debug("display metadata");
         DisplayHandler displayHandler = new DisplayHandler(process);
         displayHandler.displayOriginalMetadata();
         displayHandler.displayOMEXML();
+        
+        saveMetadataSidecar(file, process.getReader(), process.getOMEMetadata());
+        checkPlaneSize(file, process.getReader());
+        admit(file, process.getReader(), false);
 
         log.debug("read pixel data");
         ImagePlusReader reader = new ImagePlusReader(process);
@@ -301,6 +2318,283 @@ public class Process<T extends RealType<T>>  implements Command
         return imps;
     }
     
+    /**
+     * Wait until the memory budget can hold a file, the reservation is released
+     * by setFileDone(). Must be called before reading any pixel.
+     * @param file
+     * @param reader an initialized reader on the file
+     * @param streamed true if the file is projected plane by plane
+     */
+    private void admit(File file, IFormatReader reader, boolean streamed) throws InterruptedException
+    {
+        if ( memoryBudget == null )
+        {
+            return;
+        }
+        
+        long bytes = MemoryBudget.estimate(reader, streamed, projectorMethod);
+        if ( bytes > memoryBudget.getCapacity() )
+        {
+            log.warn(String.format("%s needs about %d MB, more than the memory budget (%d MB), it will be processed alone.",
+                    file.getName(), bytes >> 20, memoryBudget.getCapacity() >> 20));
+        }
+        memoryBudget.acquire(bytes);
+        reservations.put(file, bytes);
+    }
+    
+    /**
+     * Open a microscope image file and project it plane by plane using the
+     * Bio-Formats reader. Only the planes being read and the projection
+     * accumulators are in memory, the stacks are never loaded entirely.
+     * 
+     * @param file
+     * @return projected channels indexed by [serie][channel]
+     * @throws IOException
+     * @throws FormatException 
+     * @throws InterruptedException while waiting for the memory budget (@see admit())
+     */
+    private ImageProcessor[][] openProjected(File file) throws IOException, FormatException, InterruptedException, PlaneTooLargeException
+    {
+        ImageProcessorReader reader = openReader(file);
+        try
+        {
+            checkPlaneSize(file, reader);
+            admit(file, reader, true);
+            
+            ImageProcessor[][] result = new ImageProcessor[reader.getSeriesCount()][];
+            
+            for (int serie = 0; serie < result.length && !canceled; serie++)
+            {
+                reader.setSeries(serie);
+
+                // RGB planes are read as one processor per component, each of them being a channel
+                int rgbChannelCount = reader.getRGBChannelCount();
+                int channelCount = reader.getEffectiveSizeC();
+                
+                // like the importer, signed 16-bit planes are read shifted by 32768 (@see ChannelView.isSigned16Bit())
+                boolean signed16Bit = reader.getPixelType() == FormatTools.INT16;
+                ProjectionAccumulator[] accumulators = new ProjectionAccumulator[channelCount * rgbChannelCount];
+                for (int i = 0; i < accumulators.length; i++)
+                {
+                    accumulators[i] = new ProjectionAccumulator(
+                            projectorMethod, reader.getSizeX(), reader.getSizeY(), signed16Bit, vectorKernels);
+                }
+
+                // Like ZProjector, we project the slices of the first frame
+                for (int c = 0; c < channelCount; c++)
+                {
+                    for (int z = 0; z < reader.getSizeZ() && !canceled; z++)
+                    {
+                        ImageProcessor[] planes = reader.openProcessors(reader.getIndex(z, c, 0));
+                        for (int k = 0; k < planes.length; k++)
+                        {
+                            accumulators[c * rgbChannelCount + k].add(planes[k]);
+                        }
+                    }
+                }
+
+                result[serie] = new ImageProcessor[accumulators.length];
+                for (int i = 0; i < accumulators.length; i++)
+                {
+                    result[serie][i] = accumulators[i].getResult();
+                }
+            }
+            
+            return result;
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+    
+    /**
+     * Open a reader on a file to read its pixels plane by plane, or tile by tile
+     * (pixels are not read). The metadata sidecar is saved (if enabled).
+     * @param file
+     * @return an initialized reader, the caller must close it.
+     * @throws IOException
+     * @throws FormatException 
+     */
+    private ImageProcessorReader openReader(File file) throws IOException, FormatException
+    {
+        ImageProcessorReader reader;
+        IMetadata meta;
+        if ( readerCache != null )
+        {
+            reader = readerCache.open(file, getMetadataLevel());
+            meta = (IMetadata) reader.getMetadataStore();
+        }
+        else if ( batchMode )
+        {
+            reader = createReader(file);
+            meta = (IMetadata) reader.getMetadataStore();
+        }
+        else
+        {
+            ImportProcess process = createImportProcess(file, true);
+            reader = process.getReader();
+            meta = process.getOMEMetadata();
+        }
+        
+        try
+        {
+            saveMetadataSidecar(file, reader, meta);
+        }
+        catch (IOException ex)
+        {
+            reader.close();
+            throw ex;
+        }
+        return reader;
+    }
+    
+    /**
+     * Check that the planes of all the series of a file fit in an ImageProcessor.
+     * @throws PlaneTooLargeException if the file must be processed by tiles.
+     */
+    private void checkPlaneSize(File file, IFormatReader reader) throws PlaneTooLargeException
+    {
+        int currentSerie = reader.getSeries();
+        try
+        {
+            for (int serie = 0; serie < reader.getSeriesCount(); serie++)
+            {
+                reader.setSeries(serie);
+                long planeBytes = (long) reader.getSizeX() * reader.getSizeY() * FormatTools.getBytesPerPixel(reader.getPixelType());
+                if ( planeBytes > Integer.MAX_VALUE )
+                {
+                    throw new PlaneTooLargeException(file);
+                }
+            }
+        }
+        finally
+        {
+            reader.setSeries(currentSerie);
+        }
+    }
+    
+    /**
+     * Create and execute an ImportProcess for a given file (pixels are not read).
+     * @param file
+     * @param virtual true if the pixels will be read plane by plane from the reader.
+     * @return
+     * @throws IOException
+     * @throws FormatException 
+     */
+    private ImportProcess createImportProcess(File file, boolean virtual) throws IOException, FormatException
+    {
+        ImporterOptions options = new ImporterOptions();
+        options.setId(file.getPath());  
+        options.setVirtual(virtual);
+        options.setOpenAllSeries(true);
+        options.setSplitChannels(false);
+        options.setWindowless(true);
+        
+        ImportProcess process = new ImportProcess(options);
+        /*
+         * @link {loci.plugins.in.Importer.showDialogs}
+         * Goto to the source coe linked above to understand why we need this Prompter.
+         */
+        ImporterPrompter prompter = new ImporterPrompter(process);
+                
+        process.execute();
+        
+        return process;
+    }
+    
+    /**
+     * Create a reader on a file, without ImportProcess (@see ReaderCache.open()):
+     * only the metadata needed by the process are parsed (@see getMetadataLevel()).
+     * @param file
+     * @return an initialized reader, the caller must close it.
+     * @throws IOException
+     * @throws FormatException 
+     */
+    private ImageProcessorReader createReader(File file) throws IOException, FormatException
+    {
+        ImageProcessorReader reader = new ImageProcessorReader(new ChannelSeparator(LociPrefs.makeImageReader()));
+        reader.setMetadataOptions(new DefaultMetadataOptions(getMetadataLevel()));
+        reader.setMetadataStore(MetadataTools.createOMEXMLMetadata());
+        try
+        {
+            reader.setId(file.getAbsolutePath());
+        }
+        catch (IOException | FormatException ex)
+        {
+            reader.close();
+            throw ex;
+        }
+        return reader;
+    }
+    
+    /**
+     * Get the metadata level of the readers opened without ImportProcess:
+     * projecting only needs the core metadata (dimensions and pixel type), the
+     * sidecar also needs the image names and physical sizes. The original
+     * metadata of the file are then not kept in memory.
+     */
+    private MetadataLevel getMetadataLevel()
+    {
+        return metadataSidecar ? MetadataLevel.NO_OVERLAYS : MetadataLevel.MINIMUM;
+    }
+    
+    /**
+     * Save a compact metadata file next to the outputs (if enabled).
+     * @see MetadataHelper.writeSidecar()
+     */
+    private void saveMetadataSidecar(File file, IFormatReader reader, IMetadata meta) throws IOException
+    {
+        if ( metadataSidecar )
+        {
+            File sidecar = new File(destinationFolder, String.format("%s_metadata.txt", file.getName()));
+            MetadataHelper.writeSidecar(sidecar, file, reader, meta);
+        }
+    }
+    
+    /**
+     * Read all the series of an initialized reader as hyperstacks
+     * (same layout as ImagePlusReader: one channel per RGB component).
+     * @param reader
+     * @return an array of images (one per series)
+     * @throws IOException
+     * @throws FormatException 
+     */
+    private ImagePlus[] readAllSeries(ImageProcessorReader reader) throws IOException, FormatException
+    {
+        ImagePlus[] result = new ImagePlus[reader.getSeriesCount()];
+        
+        for (int serie = 0; serie < result.length && !canceled; serie++)
+        {
+            reader.setSeries(serie);
+            int channelCount = reader.getEffectiveSizeC();
+            ImageStack stack = new ImageStack(reader.getSizeX(), reader.getSizeY());
+            
+            // ImageJ hyperstack order: channels, then slices, then frames
+            for (int t = 0; t < reader.getSizeT(); t++)
+            {
+                for (int z = 0; z < reader.getSizeZ(); z++)
+                {
+                    for (int c = 0; c < channelCount; c++)
+                    {
+                        for (ImageProcessor plane : reader.openProcessors(reader.getIndex(z, c, t)))
+                        {
+                            stack.addSlice(plane);
+                        }
+                    }
+                }
+            }
+            
+            result[serie] = new ImagePlus(String.format("serie %d", serie), stack);
+            result[serie].setDimensions(
+                    channelCount * reader.getRGBChannelCount(),
+                    reader.getSizeZ(),
+                    reader.getSizeT());
+        }
+        
+        return result;
+    }
+    
     public void setListener(Listener _listener)
     {
         listener = _listener;
@@ -0,0 +1,189 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Berdal84.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.berdal84.mageek;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Journal of the outputs (one per serie and channel) written by a process.
+ *
+ * Each output is recorded once it is completely written, the journal is flushed
+ * to the disk at each record so it survives a crash. A process interrupted
+ * (canceled, killed, crashed...) leaves its journal in the output directory, a
+ * new process can then resume it and skip the outputs already written.
+ * The journal is deleted when a process completes.
+ */
+class ProcessJournal
+{
+    /* Name of the journal file, in the output directory */
+    static final String FILE_NAME = "mageek_journal.tsv";
+    
+    /* The journal file */
+    private final File file;
+    
+    /* Projection method, colors and output format of the process, outputs done with other parameters are not resumed */
+    private final String method;
+    private final String colors;
+    private final String format;
+    
+    /* Keys of the committed outputs (@see getKey()) */
+    private final Set<String> committed;
+    
+    /* Channel used to append the records */
+    private FileChannel channel;
+
+    private ProcessJournal(File _file, String _method, String _colors, String _format)
+    {
+        file = _file;
+        method = _method;
+        colors = _colors;
+        format = _format;
+        committed = new HashSet<>();
+    }
+    
+    /**
+     * Check if an output directory contains the journal of an interrupted process.
+     * @param _outputDirectory
+     * @return 
+     */
+    static boolean exists(File _outputDirectory)
+    {
+        return new File(_outputDirectory, FILE_NAME).exists();
+    }
+    
+    /**
+     * Open the journal of an output directory.
+     * @param _outputDirectory
+     * @param _method projection method of the process
+     * @param _colors colors of the process (@see ProcessManifest.getColorsKey())
+     * @param _format output format of the process (@see ProcessManifest.getFormatKey())
+     * @param _resume when true, the outputs recorded by an interrupted process are
+     * loaded, otherwise the journal is emptied.
+     * @return
+     * @throws IOException 
+     */
+    static ProcessJournal open(File _outputDirectory, String _method, String _colors, String _format, boolean _resume) throws IOException
+    {
+        ProcessJournal journal = new ProcessJournal(new File(_outputDirectory, FILE_NAME), _method, _colors, _format);
+        
+        if ( _resume && journal.file.exists() )
+        {
+            // a line partially written during a crash can't match any key, no need to validate it.
+            journal.committed.addAll(Files.readAllLines(journal.file.toPath(), StandardCharsets.UTF_8));
+        }
+        
+        StandardOpenOption mode = _resume ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING;
+        journal.channel = FileChannel.open(
+                journal.file.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                mode);
+        return journal;
+    }
+    
+    /**
+     * Get the key of an output, it identifies the input file (path, size and
+     * last modified time) and the parameters of the process.
+     */
+    private String getKey(File _input, int _serie, int _channel)
+    {
+        return String.format("%d\t%d\t%s\t%s\t%s\t%d\t%d\t%s",
+                _input.length(),
+                _input.lastModified(),
+                method,
+                colors,
+                format,
+                _serie,
+                _channel,
+                _input.getAbsolutePath());
+    }
+    
+    /**
+     * Check if the output of a serie's channel has already been written.
+     * @param _input
+     * @param _serie
+     * @param _channel
+     * @return 
+     */
+    synchronized boolean isCommitted(File _input, int _serie, int _channel)
+    {
+        return committed.contains(getKey(_input, _serie, _channel));
+    }
+    
+    /**
+     * Record the output of a serie's channel as written.
+     * Must be called once the output is completely written.
+     * @param _input
+     * @param _serie
+     * @param _channel
+     * @throws IOException 
+     */
+    synchronized void commit(File _input, int _serie, int _channel) throws IOException
+    {
+        String key = getKey(_input, _serie, _channel);
+        ByteBuffer line = ByteBuffer.wrap((key + "\n").getBytes(StandardCharsets.UTF_8));
+        while ( line.hasRemaining() )
+        {
+            channel.write(line);
+        }
+        channel.force(false);
+        committed.add(key);
+    }
+    
+    /**
+     * Get the number of outputs recorded.
+     * @return 
+     */
+    synchronized int size()
+    {
+        return committed.size();
+    }
+    
+    /**
+     * Close the journal, keep it on disk (the process can be resumed).
+     * @throws IOException 
+     */
+    synchronized void close() throws IOException
+    {
+        channel.close();
+    }
+    
+    /**
+     * Close and delete the journal (the process is complete).
+     * @throws IOException 
+     */
+    synchronized void delete() throws IOException
+    {
+        channel.close();
+        Files.deleteIfExists(file.toPath());
+    }
+}
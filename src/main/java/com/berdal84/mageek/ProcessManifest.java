@@ -0,0 +1,277 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Berdal84.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.berdal84.mageek;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Manifest of the files processed into an output directory.
+ *
+ * For each input file it records the size and last modified time of the file,
+ * the projection method, the colors and the output format used when it was
+ * processed. A new run can then skip the files which are already up to date.
+ *
+ * Entries are appended to the manifest file as soon as a file is processed (a
+ * crash does not lose the files already processed), the file is rewritten
+ * without duplicates by save().
+ */
+class ProcessManifest
+{
+    /* Name of the manifest file, in the output directory */
+    static final String FILE_NAME = "mageek_manifest.tsv";
+    
+    /**
+     * State of an input file when it was processed
+     */
+    private static class Entry
+    {
+        final long size;
+        final long lastModified;
+        final String method;
+        final String colors;
+        final String format;
+
+        Entry(long _size, long _lastModified, String _method, String _colors, String _format)
+        {
+            size = _size;
+            lastModified = _lastModified;
+            method = _method;
+            colors = _colors;
+            format = _format;
+        }
+        
+        String toLine(String _path)
+        {
+            return String.format("%d\t%d\t%s\t%s\t%s\t%s", size, lastModified, method, colors, format, _path);
+        }
+    }
+    
+    /* The manifest file */
+    private final File file;
+    
+    /* Entries indexed by absolute path of the input files */
+    private final Map<String, Entry> entries;
+
+    private ProcessManifest(File _file)
+    {
+        file = _file;
+        entries = new LinkedHashMap<>();
+    }
+    
+    /**
+     * Load the manifest of an output directory (empty if it does not exist yet)
+     * @param _outputDirectory
+     * @return
+     * @throws IOException 
+     */
+    static ProcessManifest load(File _outputDirectory) throws IOException
+    {
+        ProcessManifest manifest = new ProcessManifest(new File(_outputDirectory, FILE_NAME));
+        
+        if ( manifest.file.exists() )
+        {
+            for (String line : Files.readAllLines(manifest.file.toPath(), StandardCharsets.UTF_8))
+            {
+                String[] fields = line.split("\t", 6);
+                if ( fields.length == 6 )
+                {
+                    try
+                    {
+                        Entry entry = new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2], fields[3], fields[4]);
+                        // last line of a given file wins
+                        manifest.entries.put(fields[5], entry);
+                    }
+                    catch (NumberFormatException ex)
+                    {
+                        // line partially written during a crash, ignored.
+                    }
+                }
+                // lines without an output format (older manifests) are ignored, their files are processed again
+            }
+        }
+        return manifest;
+    }
+    
+    /**
+     * Get a String identifying the colors of a preset
+     * @param _preset
+     * @return 
+     */
+    static String getColorsKey(ColorPreset _preset)
+    {
+        return String.format("%s,%s,%s,%s",
+                _preset.getIJColorStringAt(0),
+                _preset.getIJColorStringAt(1),
+                _preset.getIJColorStringAt(2),
+                _preset.getIJColorStringAt(3));
+    }
+
+    /**
+     * Get a String identifying an output format (without tabs)
+     * @param _format output files (ex: "tiff", "ome-tiff", "zarr")
+     * @param _tiled
+     * @param _pyramid
+     * @param _compression one of TiffWriter.COMPRESSIONS
+     * @param _keepBitDepth
+     * @return 
+     */
+    static String getFormatKey(String _format, boolean _tiled, boolean _pyramid, String _compression, boolean _keepBitDepth)
+    {
+        return String.format("%s,tiled=%b,pyramid=%b,compression=%s,keepBitDepth=%b",
+                _format,
+                _tiled,
+                _pyramid,
+                _compression,
+                _keepBitDepth);
+    }
+
+    /**
+     * Check if a file has been processed with the same parameters and did not change since.
+     * @param _input
+     * @param _method
+     * @param _colors (@see getColorsKey())
+     * @param _format (@see getFormatKey())
+     * @return 
+     */
+    synchronized boolean isUpToDate(File _input, String _method, String _colors, String _format)
+    {
+        Entry entry = entries.get(_input.getAbsolutePath());
+        return entry != null
+            && entry.size == _input.length()
+            && entry.lastModified == _input.lastModified()
+            && entry.method.equals(_method)
+            && entry.colors.equals(_colors)
+            && entry.format.equals(_format);
+    }
+
+    /**
+     * Record a file as processed, the entry is immediately appended to the manifest file.
+     * @param _input
+     * @param _method
+     * @param _colors (@see getColorsKey())
+     * @param _format (@see getFormatKey())
+     * @throws IOException 
+     */
+    synchronized void add(File _input, String _method, String _colors, String _format) throws IOException
+    {
+        String path = _input.getAbsolutePath();
+        Entry entry = new Entry(_input.length(), _input.lastModified(), _method, _colors, _format);
+        entries.put(path, entry);
+        
+        try ( BufferedWriter writer = Files.newBufferedWriter(
+                file.toPath(),
+                StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND) )
+        {
+            writer.write(entry.toLine(path));
+            writer.newLine();
+        }
+    }
+    
+    /**
+     * Change the colors of some files (call save() to persist), used when
+     * existing outputs are recolored.
+     * @param _colors (@see getColorsKey())
+     * @param _names names (without folder) of the input files whose outputs were all recolored
+     */
+    synchronized void setColors(String _colors, Set<String> _names)
+    {
+        entries.replaceAll((String path, Entry entry) -> _names.contains(new File(path).getName())
+                ? new Entry(entry.size, entry.lastModified, entry.method, _colors, entry.format)
+                : entry);
+    }
+    
+    /**
+     * Remove a file from the manifest (call save() to persist)
+     * @param _input 
+     */
+    synchronized void remove(File _input)
+    {
+        entries.remove(_input.getAbsolutePath());
+    }
+    
+    /**
+     * Check if an input file with a given name (without its folder) is recorded.
+     * @param _name
+     * @return 
+     */
+    synchronized boolean containsName(String _name)
+    {
+        for (String path : entries.keySet())
+        {
+            if ( new File(path).getName().equals(_name) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Get the recorded input files which do not exist anymore.
+     * @return 
+     */
+    synchronized List<File> getDeletedInputs()
+    {
+        List<File> result = new ArrayList<>();
+        for (String path : entries.keySet())
+        {
+            File input = new File(path);
+            if ( !input.exists() )
+            {
+                result.add(input);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Rewrite the manifest file with a single line per input.
+     * @throws IOException 
+     */
+    synchronized void save() throws IOException
+    {
+        List<String> lines = new ArrayList<>(entries.size());
+        for (Map.Entry<String, Entry> each : entries.entrySet())
+        {
+            lines.add(each.getValue().toLine(each.getKey()));
+        }
+        
+        File temp = new File(file.getParentFile(), FILE_NAME + ".tmp");
+        Files.write(temp.toPath(), lines, StandardCharsets.UTF_8);
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
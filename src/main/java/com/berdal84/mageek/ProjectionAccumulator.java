@@ -0,0 +1,483 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Berdal84.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.berdal84.mageek;
+
+import ij.plugin.ZProjector;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Projects slices one by one, only the accumulators (one plane) are kept in
+ * memory. Results are the same as ij.plugin.ZProjector for each method of
+ * ZProjector.METHODS.
+ *
+ * Each method has a loop specialized for byte[], short[] and float[] pixels,
+ * accumulators are allocated once (with the first slice) and the result is
+ * built on top of them, so a projection allocates nothing per slice.
+ *
+ * Usage: add() each slice, then call getResult() (once).
+ */
+class ProjectionAccumulator
+{
+    /* One of ZProjector.XXX_METHOD */
+    private final int method;
+    
+    /* Pixel count of a slice */
+    private final int length;
+    
+    /* When true, SUM is corrected like ZProjector does for signed 16-bit images */
+    private final boolean signed16Bit;
+    
+    /* SIMD kernels for 16-bit slices, null to use the scalar loops */
+    private final VectorKernels vectorKernels;
+
+    /* Number of slices added */
+    private int count;
+    
+    /* First slice added (returned as is when there is a single slice) */
+    private ImageProcessor first;
+    
+    /* Accumulator for AVG, MAX, MIN, SUM */
+    private float[] accumulator;
+    
+    /* Accumulators for SD */
+    private double[] sum;
+    private double[] sum2;
+    
+    /* Slices pixels kept for MEDIAN (a median cannot be computed incrementally) */
+    private ArrayList<Object> slices;
+
+    /**
+     * Create an accumulator
+     * @param _method a value from ZProjector.METHODS
+     * @param _width
+     * @param _height
+     * @param _signed16Bit true if the slices are calibrated signed 16-bit
+     * @param _vectorKernels SIMD kernels to use for 16-bit slices, null to use scalar loops only
+     */
+    ProjectionAccumulator(String _method, int _width, int _height, boolean _signed16Bit, VectorKernels _vectorKernels)
+    {
+        method = getMethod(_method);
+        length = _width * _height;
+        signed16Bit = _signed16Bit;
+        vectorKernels = _vectorKernels;
+        count = 0;
+    }
+
+    /**
+     * Get a ZProjector.XXX_METHOD value from one of ZProjector.METHODS
+     * @param _method
+     * @return 
+     */
+    static int getMethod(String _method)
+    {
+        for (int i = 0; i < ZProjector.METHODS.length; i++)
+        {
+            if ( ZProjector.METHODS[i].equals(_method) )
+            {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException(String.format("Unknown projection method: %s", _method));
+    }
+    
+    /**
+     * Check if a slice can be added to an accumulator (8-bit, 16-bit and 32-bit)
+     * @param _slice
+     * @return 
+     */
+    static boolean isSupported(ImageProcessor _slice)
+    {
+        return _slice instanceof ByteProcessor
+            || _slice instanceof ShortProcessor
+            || _slice instanceof FloatProcessor;
+    }
+
+    /**
+     * Fold a slice into the accumulators
+     * @param _slice an 8-bit, 16-bit or 32-bit processor (@see isSupported())
+     */
+    void add(ImageProcessor _slice)
+    {
+        if ( !isSupported(_slice) )
+        {
+            throw new IllegalArgumentException("Only 8-bit, 16-bit and 32-bit images can be projected");
+        }
+        
+        if ( count == 0 )
+        {
+            first = _slice;
+            allocate();
+        }
+        count++;
+
+        Object pixels = _slice.getPixels();
+        
+        switch (method)
+        {
+            case ZProjector.AVG_METHOD:
+            case ZProjector.SUM_METHOD:
+                addSum(pixels);
+                break;
+
+            case ZProjector.MAX_METHOD:
+                addMax(pixels);
+                break;
+
+            case ZProjector.MIN_METHOD:
+                addMin(pixels);
+                break;
+
+            case ZProjector.SD_METHOD:
+                addSquares(pixels);
+                break;
+
+            case ZProjector.MEDIAN_METHOD:
+                slices.add(pixels);
+                break;
+        }
+    }
+
+    private void addSum(Object _pixels)
+    {
+        final float[] acc = accumulator;
+        if ( _pixels instanceof byte[] )
+        {
+            final byte[] p = (byte[]) _pixels;
+            for (int i = 0; i < length; i++)
+            {
+                acc[i] += p[i] & 0xff;
+            }
+        }
+        else if ( _pixels instanceof short[] && vectorKernels != null )
+        {
+            vectorKernels.sum((short[]) _pixels, acc, length);
+        }
+        else if ( _pixels instanceof short[] )
+        {
+            final short[] p = (short[]) _pixels;
+            for (int i = 0; i < length; i++)
+            {
+                acc[i] += p[i] & 0xffff;
+            }
+        }
+        else
+        {
+            final float[] p = (float[]) _pixels;
+            for (int i = 0; i < length; i++)
+            {
+                acc[i] += p[i];
+            }
+        }
+    }
+
+    private void addMax(Object _pixels)
+    {
+        final float[] acc = accumulator;
+        if ( _pixels instanceof byte[] )
+        {
+            final byte[] p = (byte[]) _pixels;
+            for (int i = 0; i < length; i++)
+            {
+                final int v = p[i] & 0xff;
+                if ( v > acc[i] ) acc[i] = v;
+            }
+        }
+        else if ( _pixels instanceof short[] && vectorKernels != null )
+        {
+            vectorKernels.max((short[]) _pixels, acc, length);
+        }
+        else if ( _pixels instanceof short[] )
+        {
+            final short[] p = (short[]) _pixels;
+            for (int i = 0; i < length; i++)
+            {
+                final int v = p[i] & 0xffff;
+                if ( v > acc[i] ) acc[i] = v;
+            }
+        }
+        else
+        {
+            final float[] p = (float[]) _pixels;
+            for (int i = 0; i < length; i++)
+            {
+                if ( p[i] > acc[i] ) acc[i] = p[i];
+            }
+        }
+    }
+
+    private void addMin(Object _pixels)
+    {
+        final float[] acc = accumulator;
+        if ( _pixels instanceof byte[] )
+        {
+            final byte[] p = (byte[]) _pixels;
+            for (int i = 0; i < length; i++)
+            {
+                final int v = p[i] & 0xff;
+                if ( v < acc[i] ) acc[i] = v;
+            }
+        }
+        else if ( _pixels instanceof short[] )
+        {
+            final short[] p = (short[]) _pixels;
+            for (int i = 0; i < length; i++)
+            {
+                final int v = p[i] & 0xffff;
+                if ( v < acc[i] ) acc[i] = v;
+            }
+        }
+        else
+        {
+            final float[] p = (float[]) _pixels;
+            for (int i = 0; i < length; i++)
+            {
+                if ( p[i] < acc[i] ) acc[i] = p[i];
+            }
+        }
+    }
+
+    private void addSquares(Object _pixels)
+    {
+        final double[] s = sum;
+        final double[] s2 = sum2;
+        if ( _pixels instanceof byte[] )
+        {
+            final byte[] p = (byte[]) _pixels;
+            for (int i = 0; i < length; i++)
+            {
+                final double v = p[i] & 0xff;
+                s[i] += v;
+                s2[i] += v * v;
+            }
+        }
+        else if ( _pixels instanceof short[] )
+        {
+            final short[] p = (short[]) _pixels;
+            for (int i = 0; i < length; i++)
+            {
+                final double v = p[i] & 0xffff;
+                s[i] += v;
+                s2[i] += v * v;
+            }
+        }
+        else
+        {
+            final float[] p = (float[]) _pixels;
+            for (int i = 0; i < length; i++)
+            {
+                final double v = p[i];
+                s[i] += v;
+                s2[i] += v * v;
+            }
+        }
+    }
+
+    private void allocate()
+    {
+        switch (method)
+        {
+            case ZProjector.SD_METHOD:
+                sum = new double[length];
+                sum2 = new double[length];
+                break;
+
+            case ZProjector.MEDIAN_METHOD:
+                slices = new ArrayList<>();
+                break;
+
+            default:
+                accumulator = new float[length];
+                if ( method == ZProjector.MAX_METHOD )
+                {
+                    Arrays.fill(accumulator, -Float.MAX_VALUE);
+                }
+                else if ( method == ZProjector.MIN_METHOD )
+                {
+                    Arrays.fill(accumulator, Float.MAX_VALUE);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Get the projection of the slices added so far, the accumulators are
+     * reused for the result, so no slice can be added after this call.
+     * When a single slice has been added, it is returned as is (no projection).
+     * @return 
+     */
+    ImageProcessor getResult()
+    {
+        if ( count == 0 )
+        {
+            throw new IllegalStateException("No slice to project");
+        }
+        
+        if ( count == 1 )
+        {
+            return first;
+        }
+
+        int width = first.getWidth();
+        int height = first.getHeight();
+        ImageProcessor result;
+
+        switch (method)
+        {
+            case ZProjector.AVG_METHOD:
+            {
+                final float[] acc = accumulator;
+                final float n = count;
+                for (int i = 0; i < length; i++)
+                {
+                    acc[i] /= n;
+                }
+                result = new FloatProcessor(width, height, acc);
+                break;
+            }
+            case ZProjector.SUM_METHOD:
+            {
+                result = new FloatProcessor(width, height, accumulator);
+                if ( signed16Bit )
+                {
+                    result.subtract(count * 32768.0);
+                }
+                break;
+            }
+            case ZProjector.MAX_METHOD:
+            case ZProjector.MIN_METHOD:
+            {
+                // same type as the slices
+                result = toSliceType(accumulator, width, height);
+                break;
+            }
+            case ZProjector.SD_METHOD:
+            {
+                final double n = count;
+                final float[] pixels = new float[length];
+                for (int i = 0; i < length; i++)
+                {
+                    double variance = (n * sum2[i] - sum[i] * sum[i]) / n;
+                    pixels[i] = variance > 0.0 ? (float) Math.sqrt(variance / (n - 1.0)) : 0f;
+                }
+                result = new FloatProcessor(width, height, pixels);
+                break;
+            }
+            case ZProjector.MEDIAN_METHOD:
+            {
+                result = new FloatProcessor(width, height, median());
+                if ( first instanceof ByteProcessor )
+                {
+                    result = result.convertToByte(false);
+                }
+                break;
+            }
+            default:
+                throw new IllegalStateException();
+        }
+
+        accumulator = null;
+        sum = null;
+        sum2 = null;
+        slices = null;
+        
+        result.resetMinAndMax();
+        return result;
+    }
+    
+    private ImageProcessor toSliceType(float[] _values, int _width, int _height)
+    {
+        if ( first instanceof ByteProcessor )
+        {
+            byte[] pixels = new byte[length];
+            for (int i = 0; i < length; i++)
+            {
+                pixels[i] = (byte) (int) _values[i];
+            }
+            return new ByteProcessor(_width, _height, pixels, first.getColorModel());
+        }
+        else if ( first instanceof ShortProcessor )
+        {
+            short[] pixels = new short[length];
+            for (int i = 0; i < length; i++)
+            {
+                pixels[i] = (short) (int) _values[i];
+            }
+            return new ShortProcessor(_width, _height, pixels, first.getColorModel());
+        }
+        return new FloatProcessor(_width, _height, _values);
+    }
+    
+    private float[] median()
+    {
+        final int n = count;
+        final float[] values = new float[n];
+        final float[] pixels = new float[length];
+        
+        if ( first instanceof ByteProcessor )
+        {
+            final byte[][] all = slices.toArray(new byte[n][]);
+            for (int i = 0; i < length; i++)
+            {
+                for (int s = 0; s < n; s++) values[s] = all[s][i] & 0xff;
+                pixels[i] = median(values);
+            }
+        }
+        else if ( first instanceof ShortProcessor )
+        {
+            final short[][] all = slices.toArray(new short[n][]);
+            for (int i = 0; i < length; i++)
+            {
+                for (int s = 0; s < n; s++) values[s] = all[s][i] & 0xffff;
+                pixels[i] = median(values);
+            }
+        }
+        else
+        {
+            final float[][] all = slices.toArray(new float[n][]);
+            for (int i = 0; i < length; i++)
+            {
+                for (int s = 0; s < n; s++) values[s] = all[s][i];
+                pixels[i] = median(values);
+            }
+        }
+        return pixels;
+    }
+
+    /* Same median as ZProjector (mean of the two middle values for an even count) */
+    private static float median(float[] _values)
+    {
+        Arrays.sort(_values);
+        int middle = _values.length / 2;
+        if ( (_values.length & 1) == 0 )
+        {
+            return (_values[middle - 1] + _values[middle]) / 2f;
+        }
+        return _values[middle];
+    }
+}
@@ -0,0 +1,422 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Berdal84.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.berdal84.mageek;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent cache of projected channels (before the LUT is applied).
+ *
+ * Processing the same files again with other colors only needs to apply the
+ * LUTs and write the outputs, files are not opened nor projected again.
+ *
+ * Each entry stores all the projected channels of a file for a projection
+ * method, in a sub-directory named from a hash of the file path, size, last
+ * modified time and the method (a changed file gets a new entry). Entries are
+ * evicted, least recently used first, when the cache exceeds its size.
+ */
+class ProjectionCache
+{
+    /* Name of the file storing the number of channels of each serie */
+    private static final String LAYOUT_FILE_NAME = "layout";
+    
+    /* Pixel types stored in the channel files */
+    private static final byte TYPE_BYTE = 0;
+    private static final byte TYPE_SHORT = 1;
+    private static final byte TYPE_FLOAT = 2;
+    private static final byte TYPE_RGB = 3;
+    
+    /* Size of a channel file header: type, width, height, display min and max */
+    private static final int HEADER_SIZE = 1 + 4 + 4 + 8 + 8;
+    
+    /* Root directory of the cache */
+    private final File directory;
+    
+    /* Maximum size of the cache in bytes */
+    private final long maxSize;
+    
+    /* Size in bytes of each entry, in access order (least recently used first) */
+    private final LinkedHashMap<String, Long> entries;
+    
+    /* Sum of the entries size */
+    private long size;
+
+    /**
+     * Create a cache in a given directory (created if needed), entries already in the
+     * directory are reused.
+     * @param _directory
+     * @param _maxSize maximum size of the cache in bytes
+     */
+    ProjectionCache(File _directory, long _maxSize)
+    {
+        directory = _directory;
+        maxSize = _maxSize;
+        entries = new LinkedHashMap<>(16, 0.75f, true);
+        directory.mkdirs();
+        
+        File[] content = directory.listFiles(File::isDirectory);
+        if ( content != null )
+        {
+            // last modified time of an entry is its last access (@see get())
+            Arrays.sort(content, Comparator.comparingLong(File::lastModified));
+            for (File entry : content)
+            {
+                if ( new File(entry, LAYOUT_FILE_NAME).exists() )
+                {
+                    long entrySize = getSize(entry);
+                    entries.put(entry.getName(), entrySize);
+                    size += entrySize;
+                }
+                else
+                {
+                    // entry partially written
+                    FileHelper.deleteDirectoryContent(entry, true);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Get the projected channels of a file.
+     * @param _file
+     * @param _method projection method
+     * @return the channels indexed by [serie][channel], or null if they are not cached.
+     * @throws IOException 
+     */
+    ImageProcessor[][] get(File _file, String _method) throws IOException
+    {
+        String key = getKey(_file, _method);
+        File entry = new File(directory, key);
+        
+        synchronized (this)
+        {
+            if ( entries.get(key) == null )
+            {
+                return null;
+            }
+        }
+        
+        ImageProcessor[][] result;
+        try
+        {
+            List<String> layout = Files.readAllLines(new File(entry, LAYOUT_FILE_NAME).toPath(), StandardCharsets.UTF_8);
+            result = new ImageProcessor[layout.size()][];
+            for (int serie = 0; serie < result.length; serie++)
+            {
+                result[serie] = new ImageProcessor[Integer.parseInt(layout.get(serie).trim())];
+                for (int channel = 0; channel < result[serie].length; channel++)
+                {
+                    result[serie][channel] = read(getChannelFile(entry, serie, channel));
+                }
+            }
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            // truncated or corrupted entry, the file will be projected (and cached) again
+            remove(key);
+            throw new IOException(String.format("Invalid cache entry %s", entry), ex);
+        }
+        
+        entry.setLastModified(System.currentTimeMillis());
+        return result;
+    }
+    
+    /**
+     * Store the projected channels of a file, evict the least recently used entries
+     * if the cache becomes too large. Nothing is stored when a channel has no
+     * pixels, or does not fit in a channel file (2^31 bytes or more).
+     * @param _file
+     * @param _method projection method
+     * @param _projected channels indexed by [serie][channel]
+     * @return true if the channels are stored
+     * @throws IOException 
+     */
+    boolean put(File _file, String _method, ImageProcessor[][] _projected) throws IOException
+    {
+        for (ImageProcessor[] serie : _projected)
+        {
+            for (ImageProcessor channel : serie)
+            {
+                if ( getChannelFileSize(channel) > Integer.MAX_VALUE )
+                {
+                    return false;
+                }
+            }
+        }
+        
+        String key = getKey(_file, _method);
+        File entry = new File(directory, key);
+        File temp = new File(directory, key + ".tmp" + Thread.currentThread().getId());
+        
+        if ( !temp.mkdirs() )
+        {
+            throw new IOException(String.format("Unable to create cache directory %s", temp));
+        }
+        
+        StringBuilder layout = new StringBuilder();
+        long entrySize = 0;
+        try
+        {
+            for (int serie = 0; serie < _projected.length; serie++)
+            {
+                layout.append(_projected[serie].length).append('\n');
+                for (int channel = 0; channel < _projected[serie].length; channel++)
+                {
+                    entrySize += write(getChannelFile(temp, serie, channel), _projected[serie][channel]);
+                }
+            }
+            Files.write(new File(temp, LAYOUT_FILE_NAME).toPath(), layout.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            FileHelper.deleteDirectoryContent(temp, true);
+            throw ex;
+        }
+        
+        synchronized (this)
+        {
+            if ( entries.containsKey(key) )
+            {
+                // stored meanwhile by another thread
+                FileHelper.deleteDirectoryContent(temp, true);
+                return true;
+            }
+            try
+            {
+                Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (IOException ex)
+            {
+                FileHelper.deleteDirectoryContent(temp, true);
+                throw ex;
+            }
+            entries.put(key, entrySize);
+            size += entrySize;
+            evict();
+        }
+        return true;
+    }
+    
+    /**
+     * Delete an entry
+     */
+    private synchronized void remove(String _key)
+    {
+        Long entrySize = entries.remove(_key);
+        if ( entrySize != null )
+        {
+            FileHelper.deleteDirectoryContent(new File(directory, _key), true);
+            size -= entrySize;
+        }
+    }
+    
+    /**
+     * Delete the least recently used entries until the cache fits in its maximum size.
+     */
+    private void evict()
+    {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while ( size > maxSize && it.hasNext() )
+        {
+            Map.Entry<String, Long> eldest = it.next();
+            FileHelper.deleteDirectoryContent(new File(directory, eldest.getKey()), true);
+            size -= eldest.getValue();
+            it.remove();
+        }
+    }
+    
+    private static String getKey(File _file, String _method)
+    {
+        return ReaderCache.hash(String.format("%s\t%d\t%d\t%s",
+                _file.getAbsolutePath(),
+                _file.length(),
+                _file.lastModified(),
+                _method));
+    }
+    
+    private static File getChannelFile(File _entry, int _serie, int _channel)
+    {
+        return new File(_entry, String.format("serie_%d_channel_%d.raw", _serie, _channel));
+    }
+    
+    private static long getSize(File _entry)
+    {
+        long result = 0;
+        File[] content = _entry.listFiles();
+        if ( content != null )
+        {
+            for (File file : content)
+            {
+                result += file.length();
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Get the pixel type of a processor in the channel files
+     * @throws IOException if the processor has no pixels or an unknown pixel type
+     */
+    private static byte getType(ImageProcessor _processor) throws IOException
+    {
+        Object pixels = _processor.getPixels();
+        if ( pixels instanceof byte[] )
+        {
+            return TYPE_BYTE;
+        }
+        else if ( pixels instanceof short[] )
+        {
+            return TYPE_SHORT;
+        }
+        else if ( pixels instanceof float[] )
+        {
+            return TYPE_FLOAT;
+        }
+        else if ( pixels instanceof int[] )
+        {
+            return TYPE_RGB;
+        }
+        throw new IOException(pixels == null ? "Channel has no pixels" : String.format("Unsupported pixels: %s", pixels.getClass().getSimpleName()));
+    }
+    
+    /**
+     * Get the size of the channel file of a processor (may exceed an int)
+     * @throws IOException if the processor has no pixels or an unknown pixel type
+     */
+    private static long getChannelFileSize(ImageProcessor _processor) throws IOException
+    {
+        byte type = getType(_processor);
+        int bytesPerPixel = type == TYPE_BYTE ? 1 : type == TYPE_SHORT ? 2 : 4;
+        return HEADER_SIZE + (long) _processor.getPixelCount() * bytesPerPixel;
+    }
+    
+    /**
+     * Write the pixels and display range of a processor.
+     * @return the number of bytes written.
+     */
+    private static long write(File _file, ImageProcessor _processor) throws IOException
+    {
+        Object pixels = _processor.getPixels();
+        byte type = getType(_processor);
+        long fileSize = getChannelFileSize(_processor);
+        if ( fileSize > Integer.MAX_VALUE )
+        {
+            throw new IOException(String.format("Channel too large to be cached (%d bytes)", fileSize));
+        }
+        
+        ByteBuffer buffer = ByteBuffer.allocate((int) fileSize);
+        buffer.put(type)
+              .putInt(_processor.getWidth())
+              .putInt(_processor.getHeight())
+              .putDouble(_processor.getMin())
+              .putDouble(_processor.getMax());
+        
+        switch (type)
+        {
+            case TYPE_BYTE:  buffer.put((byte[]) pixels); break;
+            case TYPE_SHORT: buffer.asShortBuffer().put((short[]) pixels); break;
+            case TYPE_FLOAT: buffer.asFloatBuffer().put((float[]) pixels); break;
+            default:         buffer.asIntBuffer().put((int[]) pixels); break;
+        }
+        buffer.rewind();
+        
+        try ( FileChannel channel = FileChannel.open(_file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE) )
+        {
+            while ( buffer.hasRemaining() )
+            {
+                channel.write(buffer);
+            }
+        }
+        return buffer.capacity();
+    }
+    
+    /**
+     * Read a processor written by write().
+     */
+    private static ImageProcessor read(File _file) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(_file.toPath()));
+        byte type = buffer.get();
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        double min = buffer.getDouble();
+        double max = buffer.getDouble();
+        int pixelCount = width * height;
+        
+        ImageProcessor result;
+        switch (type)
+        {
+            case TYPE_BYTE:
+            {
+                byte[] pixels = new byte[pixelCount];
+                buffer.get(pixels);
+                result = new ByteProcessor(width, height, pixels);
+                break;
+            }
+            case TYPE_SHORT:
+            {
+                short[] pixels = new short[pixelCount];
+                buffer.asShortBuffer().get(pixels);
+                result = new ShortProcessor(width, height, pixels, null);
+                break;
+            }
+            case TYPE_FLOAT:
+            {
+                float[] pixels = new float[pixelCount];
+                buffer.asFloatBuffer().get(pixels);
+                result = new FloatProcessor(width, height, pixels);
+                break;
+            }
+            case TYPE_RGB:
+            {
+                int[] pixels = new int[pixelCount];
+                buffer.asIntBuffer().get(pixels);
+                // display range of RGB images is applied to the pixels, not restored.
+                return new ColorProcessor(width, height, pixels);
+            }
+            default:
+                throw new IOException(String.format("Unknown pixel type in %s", _file));
+        }
+        result.setMinAndMax(min, max);
+        return result;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Berdal84.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.berdal84.mageek;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import loci.formats.ChannelSeparator;
+import loci.formats.FormatException;
+import loci.formats.Memoizer;
+import loci.formats.MetadataTools;
+import loci.formats.in.DefaultMetadataOptions;
+import loci.formats.in.MetadataLevel;
+import loci.plugins.util.ImageProcessorReader;
+import loci.plugins.util.LociPrefs;
+
+/**
+ * Persistent cache of initialized Bio-Formats readers.
+ *
+ * Parsing the headers of large ND2/CZI files can take a long time, a Memoizer
+ * saves the initialized reader state on disk the first time a file is opened,
+ * next openings reload it instead of parsing the file again.
+ *
+ * Each source file has its own sub-directory (named from a hash of its path)
+ * storing the memo and the size/last modified time of the file (and the
+ * metadata level) when it was cached. The memo is deleted when one of them
+ * changes.
+ */
+class ReaderCache
+{
+    /* Name of the file storing the size and last modified time of the source file, and the metadata level */
+    private static final String KEY_FILE_NAME = "source.key";
+    
+    /* Root directory of the cache */
+    private final File directory;
+
+    /**
+     * Create a cache in a given directory (created if needed)
+     * @param _directory 
+     */
+    ReaderCache(File _directory)
+    {
+        directory = _directory;
+    }
+
+    File getDirectory()
+    {
+        return directory;
+    }
+    
+    /**
+     * Open a reader on a file, reusing the cached reader state when the file
+     * did not change since it was cached. 
+     * 
+     * The reader has an OME metadata store and splits RGB channels (like the
+     * reader of an ImportProcess). The caller must close it.
+     * 
+     * @param _file
+     * @param _level metadata parsed by the reader (a memo saved with another level is replaced)
+     * @return an initialized reader
+     * @throws IOException
+     * @throws FormatException 
+     */
+    ImageProcessorReader open(File _file, MetadataLevel _level) throws IOException, FormatException
+    {
+        File memoDirectory = getMemoDirectory(_file, _level);
+        
+        Memoizer memoizer = new Memoizer(LociPrefs.makeImageReader(), 0, memoDirectory);
+        ImageProcessorReader reader = new ImageProcessorReader(new ChannelSeparator(memoizer));
+        reader.setMetadataOptions(new DefaultMetadataOptions(_level));
+        reader.setMetadataStore(MetadataTools.createOMEXMLMetadata());
+        reader.setId(_file.getAbsolutePath());
+        
+        return reader;
+    }
+    
+    /**
+     * Get the memo directory of a file, clear it if the file or the metadata level changed.
+     */
+    private File getMemoDirectory(File _file, MetadataLevel _level) throws IOException
+    {
+        File memoDirectory = new File(directory, hash(_file.getAbsolutePath()));
+        File keyFile = new File(memoDirectory, KEY_FILE_NAME);
+        String key = String.format("%d %d %s", _file.length(), _file.lastModified(), _level);
+        
+        boolean valid = keyFile.exists() 
+                && new String(Files.readAllBytes(keyFile.toPath()), StandardCharsets.UTF_8).equals(key);
+        
+        if ( !valid )
+        {
+            if ( memoDirectory.exists() )
+            {
+                FileHelper.deleteDirectoryContent(memoDirectory, false);
+            }
+            else if ( !memoDirectory.mkdirs() )
+            {
+                throw new IOException(String.format("Unable to create cache directory %s", memoDirectory));
+            }
+            Files.write(keyFile.toPath(), key.getBytes(StandardCharsets.UTF_8));
+        }
+        
+        return memoDirectory;
+    }
+    
+    static String hash(String _value)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest(_value.getBytes(StandardCharsets.UTF_8)))
+            {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
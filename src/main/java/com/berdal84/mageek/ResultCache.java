@@ -0,0 +1,147 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Berdal84.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.berdal84.mageek;
+
+import ij.process.ImageProcessor;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In memory cache of the projections saved by a Process, for callers which need
+ * the results after a run (@see Process.setResultCache()).
+ *
+ * The cache is bounded in bytes, least recently used results are evicted first
+ * when a new result does not fit. Results can also be evicted explicitly.
+ * Results are indexed by output name (ex: "file.czi_serie_0_channel_1").
+ */
+public class ResultCache
+{
+    /* Maximum size in bytes */
+    private final long maxSize;
+    
+    /* Results in access order (least recently used first) */
+    private final LinkedHashMap<String, ImageProcessor> results;
+    
+    /* Sum of the results size */
+    private long size;
+    
+    /**
+     * Create an empty cache
+     * @param _maxSize maximum size in bytes
+     */
+    public ResultCache(long _maxSize)
+    {
+        maxSize = _maxSize;
+        results = new LinkedHashMap<>(16, 0.75f, true);
+    }
+    
+    /**
+     * Add a result, replacing the one with the same name. A result larger than the
+     * cache is not added.
+     * @param _name
+     * @param _result 
+     */
+    public synchronized void put(String _name, ImageProcessor _result)
+    {
+        evict(_name);
+        
+        long resultSize = getSize(_result);
+        if ( resultSize > maxSize )
+        {
+            return;
+        }
+        
+        Iterator<Map.Entry<String, ImageProcessor>> it = results.entrySet().iterator();
+        while ( size + resultSize > maxSize && it.hasNext() )
+        {
+            size -= getSize(it.next().getValue());
+            it.remove();
+        }
+        
+        results.put(_name, _result);
+        size += resultSize;
+    }
+    
+    /**
+     * Get a result
+     * @param _name
+     * @return the result, or null if it is not (or no longer) in the cache.
+     */
+    public synchronized ImageProcessor get(String _name)
+    {
+        return results.get(_name);
+    }
+    
+    /**
+     * Get the names of the results in the cache, least recently used first
+     * @return 
+     */
+    public synchronized List<String> getNames()
+    {
+        return new ArrayList<>(results.keySet());
+    }
+    
+    /**
+     * Remove a result from the cache
+     * @param _name
+     * @return true if the result was in the cache
+     */
+    public synchronized boolean evict(String _name)
+    {
+        ImageProcessor removed = results.remove(_name);
+        if ( removed != null )
+        {
+            size -= getSize(removed);
+        }
+        return removed != null;
+    }
+    
+    /**
+     * Remove all the results
+     */
+    public synchronized void clear()
+    {
+        results.clear();
+        size = 0;
+    }
+    
+    /**
+     * Get the size of the results in the cache, in bytes
+     * @return 
+     */
+    public synchronized long getSize()
+    {
+        return size;
+    }
+    
+    private static long getSize(ImageProcessor _processor)
+    {
+        // RGB pixels are stored as int
+        int bytesPerPixel = _processor.getBitDepth() == 24 ? 4 : _processor.getBitDepth() / 8;
+        return (long) _processor.getPixelCount() * bytesPerPixel;
+    }
+}
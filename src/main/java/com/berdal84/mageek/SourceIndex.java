@@ -0,0 +1,344 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Berdal84.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.berdal84.mageek;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persistent index of a source tree, used by FileScanner to avoid listing the
+ * directories which did not change since the last scan.
+ *
+ * For each directory it records its last modified time, its subdirectories
+ * and its files (name, size, last modified time and extension). A directory
+ * whose last modified time is unchanged has the same entries, its listing is
+ * read from the index, others are listed again (revalidated).
+ *
+ * The index of a root is a binary file, named after the root, in the index
+ * directory. It is rewritten by save() with the directories visited by the
+ * last scan, the deleted directories are then forgotten.
+ */
+class SourceIndex
+{
+    /* Index file header */
+    private static final int MAGIC_NUMBER = 0x4d474b49; // "MGKI"
+    private static final int VERSION = 1;
+    
+    /**
+     * Listing of a directory
+     */
+    static class Directory
+    {
+        final long lastModified;
+        final String[] subdirectories;
+        final String[] names;
+        final long[] sizes;
+        final long[] lastModifieds;
+        final String[] extensions; // formatted (@see FileHelper.formatExtension())
+
+        Directory(long _lastModified, String[] _subdirectories, String[] _names, long[] _sizes, long[] _lastModifieds, String[] _extensions)
+        {
+            lastModified = _lastModified;
+            subdirectories = _subdirectories;
+            names = _names;
+            sizes = _sizes;
+            lastModifieds = _lastModifieds;
+            extensions = _extensions;
+        }
+        
+        /**
+         * List a directory
+         * @param _directory
+         * @param _lastModified last modified time of the directory, read before listing it
+         * @return
+         * @throws IOException 
+         */
+        static Directory list(Path _directory, long _lastModified) throws IOException
+        {
+            List<String> subdirectories = new ArrayList<>();
+            List<String> names = new ArrayList<>();
+            List<Long> sizes = new ArrayList<>();
+            List<Long> lastModifieds = new ArrayList<>();
+            try ( DirectoryStream<Path> stream = Files.newDirectoryStream(_directory) )
+            {
+                for (Path path : stream)
+                {
+                    BasicFileAttributes attributes;
+                    try
+                    {
+                        attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    }
+                    catch (IOException ex)
+                    {
+                        // a broken link or an entry deleted meanwhile, the others are still listed
+                        Logger.getLogger(SourceIndex.class.getName()).log(Level.FINE, null, ex);
+                        continue;
+                    }
+                    String name = path.getFileName().toString();
+                    if ( attributes.isDirectory() )
+                    {
+                        subdirectories.add(name);
+                    }
+                    else
+                    {
+                        names.add(name);
+                        sizes.add(attributes.size());
+                        lastModifieds.add(attributes.lastModifiedTime().toMillis());
+                    }
+                }
+            }
+            catch (DirectoryIteratorException ex)
+            {
+                throw ex.getCause();
+            }
+            
+            int count = names.size();
+            long[] sizeArray = new long[count];
+            long[] lastModifiedArray = new long[count];
+            String[] extensions = new String[count];
+            for (int i = 0; i < count; i++)
+            {
+                sizeArray[i] = sizes.get(i);
+                lastModifiedArray[i] = lastModifieds.get(i);
+                extensions[i] = FileHelper.getFormattedExtension(new File(names.get(i))).intern();
+            }
+            return new Directory(_lastModified, subdirectories.toArray(new String[0]), names.toArray(new String[0]),
+                    sizeArray, lastModifiedArray, extensions);
+        }
+    }
+    
+    /* The index file */
+    private final File file;
+    
+    /* The indexed root */
+    private final Path root;
+    
+    /* Directories read from the index file, by path relative to the root */
+    private final Map<String, Directory> loaded;
+    
+    /* Directories visited by the current scan, by path relative to the root */
+    private final Map<String, Directory> visited = new ConcurrentHashMap<>();
+    
+    /* Number of directories listed by the current scan */
+    private final AtomicInteger revalidatedCount = new AtomicInteger();
+
+    private SourceIndex(File _file, Path _root, Map<String, Directory> _loaded)
+    {
+        file = _file;
+        root = _root;
+        loaded = _loaded;
+    }
+    
+    /**
+     * Load the index of a source tree (empty if it does not exist yet or can't be read)
+     * @param _indexDirectory directory of the index files
+     * @param _root the source tree
+     * @param _ignoreFolderName name of the folders ignored by the scans (part of the index identity)
+     * @return 
+     */
+    static SourceIndex load(File _indexDirectory, File _root, String _ignoreFolderName)
+    {
+        Path root = _root.toPath().toAbsolutePath();
+        File file = new File(_indexDirectory, ReaderCache.hash(root + "\t" + _ignoreFolderName) + ".idx");
+        Map<String, Directory> loaded = new HashMap<>();
+        
+        if ( file.exists() )
+        {
+            try ( DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath()), 1 << 16)) )
+            {
+                if ( in.readInt() != MAGIC_NUMBER || in.readInt() != VERSION || !in.readUTF().equals(root.toString()) )
+                {
+                    throw new IOException("Unexpected index header");
+                }
+                
+                String[] extensionTable = new String[in.readInt()];
+                for (int i = 0; i < extensionTable.length; i++)
+                {
+                    extensionTable[i] = in.readUTF().intern();
+                }
+                
+                int directoryCount = in.readInt();
+                for (int d = 0; d < directoryCount; d++)
+                {
+                    String path = in.readUTF();
+                    long lastModified = in.readLong();
+                    String[] subdirectories = new String[in.readInt()];
+                    for (int i = 0; i < subdirectories.length; i++)
+                    {
+                        subdirectories[i] = in.readUTF();
+                    }
+                    int count = in.readInt();
+                    String[] names = new String[count];
+                    long[] sizes = new long[count];
+                    long[] lastModifieds = new long[count];
+                    String[] extensions = new String[count];
+                    for (int i = 0; i < count; i++)
+                    {
+                        names[i] = in.readUTF();
+                        sizes[i] = in.readLong();
+                        lastModifieds[i] = in.readLong();
+                        extensions[i] = extensionTable[in.readUnsignedShort()];
+                    }
+                    loaded.put(path, new Directory(lastModified, subdirectories, names, sizes, lastModifieds, extensions));
+                }
+            }
+            catch (IOException | RuntimeException ex)
+            {
+                // a corrupted index is rebuilt by the next scan
+                loaded.clear();
+            }
+        }
+        return new SourceIndex(file, root, loaded);
+    }
+    
+    /**
+     * Get the listing of a directory, read from the index when the directory
+     * did not change, listed otherwise. Thread safe.
+     * @param _directory a directory of the indexed tree
+     * @return
+     * @throws IOException 
+     */
+    Directory list(Path _directory) throws IOException
+    {
+        String path = root.relativize(_directory.toAbsolutePath()).toString();
+        long lastModified = Files.getLastModifiedTime(_directory).toMillis();
+        
+        Directory directory = loaded.get(path);
+        if ( directory == null || directory.lastModified != lastModified )
+        {
+            directory = Directory.list(_directory, lastModified);
+            revalidatedCount.incrementAndGet();
+        }
+        visited.put(path, directory);
+        return directory;
+    }
+    
+    /**
+     * Get the number of directories listed (not read from the index) by the current scan
+     */
+    int getRevalidatedCount()
+    {
+        return revalidatedCount.get();
+    }
+    
+    /**
+     * Get the files of the directories visited by the current scan, bucketed by extension.
+     * @return 
+     */
+    FileIndex getFileIndex()
+    {
+        FileIndex result = new FileIndex();
+        for (Map.Entry<String, Directory> entry : visited.entrySet())
+        {
+            Directory directory = entry.getValue();
+            Path path = root.resolve(entry.getKey());
+            for (int i = 0; i < directory.names.length; i++)
+            {
+                result.add(path.resolve(directory.names[i]).toFile(), directory.extensions[i], directory.sizes[i]);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Write the directories visited by the current scan to the index file.
+     * @throws IOException 
+     */
+    void save() throws IOException
+    {
+        Files.createDirectories(file.getParentFile().toPath());
+        
+        Map<String, Integer> extensionIndices = new HashMap<>();
+        List<String> extensionTable = new ArrayList<>();
+        for (Directory directory : visited.values())
+        {
+            for (String extension : directory.extensions)
+            {
+                if ( !extensionIndices.containsKey(extension) )
+                {
+                    extensionIndices.put(extension, extensionTable.size());
+                    extensionTable.add(extension);
+                }
+            }
+        }
+        if ( extensionTable.size() > 0xffff )
+        {
+            throw new IOException("Too many extensions to be indexed");
+        }
+        
+        File temp = new File(file.getPath() + ".tmp");
+        try ( DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp.toPath()), 1 << 16)) )
+        {
+            out.writeInt(MAGIC_NUMBER);
+            out.writeInt(VERSION);
+            out.writeUTF(root.toString());
+            
+            out.writeInt(extensionTable.size());
+            for (String extension : extensionTable)
+            {
+                out.writeUTF(extension);
+            }
+            
+            out.writeInt(visited.size());
+            for (Map.Entry<String, Directory> entry : visited.entrySet())
+            {
+                Directory directory = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(directory.lastModified);
+                out.writeInt(directory.subdirectories.length);
+                for (String subdirectory : directory.subdirectories)
+                {
+                    out.writeUTF(subdirectory);
+                }
+                out.writeInt(directory.names.length);
+                for (int i = 0; i < directory.names.length; i++)
+                {
+                    out.writeUTF(directory.names[i]);
+                    out.writeLong(directory.sizes[i]);
+                    out.writeLong(directory.lastModifieds[i]);
+                    out.writeShort(extensionIndices.get(directory.extensions[i]));
+                }
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Berdal84.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.berdal84.mageek;
+
+import ij.process.LUT;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Rewrite the LUT of an existing TIFF in place.
+ *
+ * The LUT of 8-bit outputs is the ColorMap tag of the TIFF header, the LUT of
+ * 16-bit and 32-bit outputs is stored in the ImageJ metadata (@see TiffWriter).
+ * Classic TIFF and BigTIFF (@see TiledTiffWriter) files are supported.
+ * Only the bytes of these LUTs are overwritten, pixels are not read nor written.
+ */
+class TiffRecolorer
+{
+    /* Size of the TIFF color map of an 8-bit image (3 * 256 shorts) */
+    private static final int COLOR_MAP_COUNT = 3 * 256;
+    
+    private TiffRecolorer()
+    {
+    }
+    
+    /**
+     * Replace the LUT of each image of a TIFF file.
+     * @param _tiff
+     * @param _lut the new LUT
+     * @return false if the file has no LUT (ex: 8-bit gray images saved by ImageJ have no color map)
+     * @throws IOException if the file is not a valid TIFF
+     */
+    static boolean recolor(File _tiff, LUT _lut) throws IOException
+    {
+        try ( FileChannel channel = FileChannel.open(_tiff.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE) )
+        {
+            ByteBuffer header = read(channel, 0, 16, ByteOrder.BIG_ENDIAN);
+            ByteOrder order;
+            switch (header.getShort())
+            {
+                case 0x4949: order = ByteOrder.LITTLE_ENDIAN; break;
+                case 0x4D4D: order = ByteOrder.BIG_ENDIAN; break;
+                default: throw new IOException(String.format("%s is not a TIFF file", _tiff));
+            }
+            header.order(order);
+            
+            // BigTIFF (@see TiledTiffWriter) has 64-bit counts and offsets
+            boolean big;
+            switch (header.getShort())
+            {
+                case 42: big = false; break;
+                case 43: big = true; break;
+                default: throw new IOException(String.format("%s is not a TIFF file", _tiff));
+            }
+            int countSize = big ? 8 : 2;
+            int entrySize = big ? 20 : 12;
+            int offsetSize = big ? 8 : 4;
+            
+            ByteBuffer colorMap = ByteBuffer.wrap(TiffWriter.createColorMap(_lut, order));
+            ByteBuffer rgb = ByteBuffer.wrap(TiffWriter.createLutData(_lut));
+            boolean found = false;
+            long ifdOffset = big ? header.getLong(8) : header.getInt(4) & 0xffffffffL;
+            
+            // reduced resolutions of pyramids are SubIFDs, visited once their parent chain is done
+            Deque<Long> subIfds = new ArrayDeque<>();
+            
+            // a malformed file could link IFDs in a loop
+            Set<Long> visited = new HashSet<>();
+            
+            while ( ifdOffset != 0 || !subIfds.isEmpty() )
+            {
+                if ( ifdOffset == 0 )
+                {
+                    ifdOffset = subIfds.pop();
+                }
+                if ( !visited.add(ifdOffset) )
+                {
+                    ifdOffset = 0; // already visited, stop this chain
+                    continue;
+                }
+                
+                ByteBuffer countBuffer = read(channel, ifdOffset, countSize, order);
+                int entryCount = (int) (big ? countBuffer.getLong() : countBuffer.getShort() & 0xffff);
+                ByteBuffer ifd = read(channel, ifdOffset + countSize, entryCount * entrySize + offsetSize, order);
+                
+                long metaDataOffset = -1;
+                long[] metaDataCounts = null;
+                
+                for (int i = 0; i < entryCount; i++)
+                {
+                    int base = i * entrySize;
+                    int tag = ifd.getShort(base) & 0xffff;
+                    int type = ifd.getShort(base + 2) & 0xffff;
+                    long count = big ? ifd.getLong(base + 4) : ifd.getInt(base + 4) & 0xffffffffL;
+                    int valuePosition = base + (big ? 12 : 8);
+                    long value = big ? ifd.getLong(valuePosition) : ifd.getInt(valuePosition) & 0xffffffffL;
+                    
+                    if ( tag == TiffWriter.TAG_COLOR_MAP && type == TiffWriter.TYPE_SHORT && count == COLOR_MAP_COUNT )
+                    {
+                        write(channel, colorMap, value);
+                        found = true;
+                    }
+                    else if ( tag == TiledTiffWriter.TAG_SUB_IFDS )
+                    {
+                        int size = type == TiledTiffWriter.TYPE_LONG8 || type == TiledTiffWriter.TYPE_IFD8 ? 8 : 4;
+                        boolean inlined = count * size <= offsetSize;
+                        ByteBuffer offsets = inlined ? ifd : read(channel, value, (int) count * size, order);
+                        int first = inlined ? valuePosition : 0;
+                        for (int j = 0; j < count; j++)
+                        {
+                            subIfds.push(size == 8 ? offsets.getLong(first + j * 8) : offsets.getInt(first + j * 4) & 0xffffffffL);
+                        }
+                    }
+                    else if ( tag == TiffWriter.TAG_META_DATA )
+                    {
+                        metaDataOffset = value;
+                    }
+                    else if ( tag == TiffWriter.TAG_META_DATA_BYTE_COUNTS && type == TiffWriter.TYPE_LONG )
+                    {
+                        // inlined when they fit in the value field
+                        boolean inlined = count * 4 <= offsetSize;
+                        ByteBuffer counts = inlined ? ifd : read(channel, value, (int) count * 4, order);
+                        int first = inlined ? valuePosition : 0;
+                        metaDataCounts = new long[(int) count];
+                        for (int j = 0; j < count; j++)
+                        {
+                            metaDataCounts[j] = counts.getInt(first + j * 4) & 0xffffffffL;
+                        }
+                    }
+                }
+                
+                if ( metaDataOffset >= 0 && metaDataCounts != null )
+                {
+                    found |= recolorMetaData(channel, metaDataOffset, metaDataCounts, rgb, order);
+                }
+                ifdOffset = big ? ifd.getLong(entryCount * entrySize) : ifd.getInt(entryCount * entrySize) & 0xffffffffL;
+            }
+            return found;
+        }
+    }
+    
+    /**
+     * Overwrite the LUTs stored in ImageJ metadata.
+     * The metadata starts with a header (magic number, then a type and a count
+     * for each kind of data), followed by the data, each one sized by _counts.
+     */
+    private static boolean recolorMetaData(FileChannel _channel, long _offset, long[] _counts, ByteBuffer _rgb, ByteOrder _order) throws IOException
+    {
+        int headerSize = (int) _counts[0];
+        ByteBuffer header = read(_channel, _offset, headerSize, _order);
+        if ( headerSize < 4 || header.getInt() != TiffWriter.IJ_MAGIC_NUMBER )
+        {
+            return false;
+        }
+        
+        boolean found = false;
+        long position = _offset + headerSize;
+        int index = 1;
+        while ( header.remaining() >= 8 )
+        {
+            int type = header.getInt();
+            int count = header.getInt();
+            for (int i = 0; i < count && index < _counts.length; i++, index++)
+            {
+                if ( type == TiffWriter.IJ_LUTS && _counts[index] == TiffWriter.IJ_LUT_SIZE )
+                {
+                    write(_channel, _rgb, position);
+                    found = true;
+                }
+                position += _counts[index];
+            }
+        }
+        return found;
+    }
+    
+    private static void write(FileChannel _channel, ByteBuffer _buffer, long _position) throws IOException
+    {
+        _buffer.rewind();
+        while ( _buffer.hasRemaining() )
+        {
+            _channel.write(_buffer, _position + _buffer.position());
+        }
+    }
+    
+    private static ByteBuffer read(FileChannel _channel, long _position, int _size, ByteOrder _order) throws IOException
+    {
+        ByteBuffer result = ByteBuffer.allocate(_size).order(_order);
+        while ( result.hasRemaining() )
+        {
+            if ( _channel.read(result, _position + result.position()) < 0 )
+            {
+                throw new IOException("Unexpected end of TIFF file");
+            }
+        }
+        result.flip();
+        return result;
+    }
+}
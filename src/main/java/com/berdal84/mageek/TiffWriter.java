@@ -0,0 +1,495 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Berdal84.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.berdal84.mageek;
+
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.Deflater;
+
+/**
+ * Write an ImageProcessor and its LUT to a single image TIFF file.
+ *
+ * Pixels are written from the processor's array, without rendering an AWT image.
+ * They are written in strips: 8-bit strips wrap the array, 16-bit and 32-bit
+ * strips are converted to big endian one at a time. They can be compressed
+ * (deflate or LZW), strips are then compressed in parallel and written at
+ * their position once their sizes are known.
+ * Files are big endian, readable by ImageJ like the files saved by FileSaver:
+ * - 8-bit images are palette images, the LUT is the ColorMap tag.
+ * - 16-bit and 32-bit images are gray images, the LUT and the display range
+ *   are stored in the ImageJ metadata (like ImageJ does for hyperstacks).
+ */
+class TiffWriter
+{
+    /* TIFF tags */
+    static final int TAG_IMAGE_WIDTH = 256;
+    static final int TAG_IMAGE_LENGTH = 257;
+    static final int TAG_BITS_PER_SAMPLE = 258;
+    static final int TAG_PHOTOMETRIC_INTERPRETATION = 262;
+    static final int TAG_COMPRESSION = 259;
+    static final int TAG_IMAGE_DESCRIPTION = 270;
+    static final int TAG_STRIP_OFFSETS = 273;
+    static final int TAG_SAMPLES_PER_PIXEL = 277;
+    static final int TAG_ROWS_PER_STRIP = 278;
+    static final int TAG_STRIP_BYTE_COUNTS = 279;
+    static final int TAG_COLOR_MAP = 320;
+    static final int TAG_SAMPLE_FORMAT = 339;
+    static final int TAG_META_DATA_BYTE_COUNTS = 50838;
+    static final int TAG_META_DATA = 50839;
+    
+    /* TIFF types */
+    static final int TYPE_ASCII = 2;
+    static final int TYPE_SHORT = 3;
+    static final int TYPE_LONG = 4;
+    static final int TYPE_UNDEFINED = 7;
+    
+    /* Compressions, indexed like COMPRESSIONS */
+    static final int COMPRESSION_NONE = 0;
+    static final int COMPRESSION_DEFLATE = 1;
+    static final int COMPRESSION_LZW = 2;
+    
+    /* Compression names, to be displayed */
+    static final String[] COMPRESSIONS = { "None", "Deflate", "LZW" };
+    
+    /* TIFF Compression tag value of each compression */
+    static final int[] COMPRESSION_CODES = { 1, 8, 5 };
+    
+    /* Size of the strips before compression, a strip is converted and compressed by a single thread */
+    private static final int STRIP_SIZE = 256 * 1024;
+    
+    /* ImageJ metadata: header magic number and type of the LUT entries */
+    static final int IJ_MAGIC_NUMBER = 0x494a494a; // "IJIJ"
+    static final int IJ_LUTS = 0x6c757473; // "luts"
+    
+    /* Size of a LUT in the ImageJ metadata (r, g, b bytes) */
+    static final int IJ_LUT_SIZE = 3 * 256;
+    
+    /**
+     * A TIFF IFD entry, the value is inlined when it fits in 4 bytes.
+     */
+    private static class Entry
+    {
+        final int tag;
+        final int type;
+        final int count;
+        final byte[] data;
+
+        Entry(int _tag, int _type, int _count, byte[] _data)
+        {
+            tag = _tag;
+            type = _type;
+            count = _count;
+            data = _data;
+        }
+    }
+    
+    private TiffWriter()
+    {
+    }
+    
+    /**
+     * Write a processor to an uncompressed TIFF file.
+     * @param _file
+     * @param _processor a byte, short or float processor
+     * @param _lut the LUT to store
+     * @return the number of bytes written
+     * @throws IOException 
+     */
+    static long write(File _file, ImageProcessor _processor, LUT _lut) throws IOException
+    {
+        return write(_file, _processor, _lut, COMPRESSION_NONE, null);
+    }
+    
+    /**
+     * Write a processor to a TIFF file.
+     * @param _file
+     * @param _processor a byte, short or float processor
+     * @param _lut the LUT to store
+     * @param _compression one of the COMPRESSION_* values
+     * @param _pool the pool compressing the strips (when null, they are compressed by the caller)
+     * @return the number of bytes written
+     * @throws IOException 
+     */
+    static long write(File _file, ImageProcessor _processor, LUT _lut, int _compression, ForkJoinPool _pool) throws IOException
+    {
+        int width = _processor.getWidth();
+        int height = _processor.getHeight();
+        Object pixels = _processor.getPixels();
+        
+        int bitsPerSample;
+        if ( pixels instanceof byte[] )
+        {
+            bitsPerSample = 8;
+        }
+        else if ( pixels instanceof short[] )
+        {
+            bitsPerSample = 16;
+        }
+        else if ( pixels instanceof float[] )
+        {
+            bitsPerSample = 32;
+        }
+        else
+        {
+            throw new IllegalArgumentException("RGB images can't be written with a LUT");
+        }
+        long rowBytes = (long) width * (bitsPerSample / 8);
+        if ( rowBytes * height > 0xffffffffL )
+        {
+            throw new IOException(String.format("%s would exceed 4 GiB", _file.getName()));
+        }
+        
+        int rowsPerStrip = getRowsPerStrip(rowBytes, height);
+        int stripCount = (height + rowsPerStrip - 1) / rowsPerStrip;
+        
+        // Uncompressed strips are converted while writing, compressed ones before (their sizes are needed for the layout).
+        ByteBuffer[] strips = null;
+        long[] stripSizes = new long[stripCount];
+        if ( _compression == COMPRESSION_NONE )
+        {
+            for (int strip = 0; strip < stripCount; strip++)
+            {
+                stripSizes[strip] = getStripRows(strip, rowsPerStrip, height) * rowBytes;
+            }
+        }
+        else
+        {
+            strips = compressStrips(pixels, width, height, rowsPerStrip, stripCount, _compression, _pool);
+            for (int strip = 0; strip < stripCount; strip++)
+            {
+                stripSizes[strip] = strips[strip].remaining();
+            }
+        }
+        
+        List<Entry> entries = new ArrayList<>();
+        entries.add(longEntry(TAG_IMAGE_WIDTH, width)); // LONG like ij.io.TiffEncoder, a SHORT would truncate
+        entries.add(longEntry(TAG_IMAGE_LENGTH, height));
+        entries.add(shortEntry(TAG_BITS_PER_SAMPLE, bitsPerSample));
+        entries.add(shortEntry(TAG_COMPRESSION, COMPRESSION_CODES[_compression]));
+        entries.add(shortEntry(TAG_PHOTOMETRIC_INTERPRETATION, bitsPerSample == 8 ? 3 : 1));
+        if ( bitsPerSample != 8 )
+        {
+            String description = String.format("ImageJ=1.53\nmin=%s\nmax=%s\n\0",
+                    _processor.getMin(), _processor.getMax());
+            byte[] data = description.getBytes(StandardCharsets.US_ASCII);
+            entries.add(new Entry(TAG_IMAGE_DESCRIPTION, TYPE_ASCII, data.length, data));
+        }
+        Entry stripOffsets = new Entry(TAG_STRIP_OFFSETS, TYPE_LONG, stripCount, new byte[stripCount * 4]); // filled once the layout is known
+        entries.add(stripOffsets);
+        entries.add(shortEntry(TAG_SAMPLES_PER_PIXEL, 1));
+        entries.add(longEntry(TAG_ROWS_PER_STRIP, rowsPerStrip));
+        ByteBuffer stripByteCounts = ByteBuffer.allocate(stripCount * 4);
+        for (long stripSize : stripSizes)
+        {
+            stripByteCounts.putInt((int) stripSize);
+        }
+        entries.add(new Entry(TAG_STRIP_BYTE_COUNTS, TYPE_LONG, stripCount, stripByteCounts.array()));
+        if ( bitsPerSample == 8 )
+        {
+            entries.add(new Entry(TAG_COLOR_MAP, TYPE_SHORT, 3 * 256, createColorMap(_lut, ByteOrder.BIG_ENDIAN)));
+        }
+        if ( bitsPerSample == 32 )
+        {
+            entries.add(shortEntry(TAG_SAMPLE_FORMAT, 3)); // IEEE float
+        }
+        if ( bitsPerSample != 8 )
+        {
+            byte[] metaData = createMetaData(_lut, ByteOrder.BIG_ENDIAN);
+            ByteBuffer counts = ByteBuffer.allocate(8);
+            counts.putInt(metaData.length - IJ_LUT_SIZE).putInt(IJ_LUT_SIZE);
+            entries.add(new Entry(TAG_META_DATA_BYTE_COUNTS, TYPE_LONG, 2, counts.array()));
+            entries.add(new Entry(TAG_META_DATA, TYPE_UNDEFINED, metaData.length, metaData));
+        }
+        
+        // Layout: header, IFD, values not inlined, strips.
+        int ifdSize = 2 + entries.size() * 12 + 4;
+        int valuesSize = 0;
+        for (Entry entry : entries)
+        {
+            if ( entry.data.length > 4 )
+            {
+                valuesSize += (entry.data.length + 1) & ~1; // word aligned
+            }
+        }
+        long pixelOffset = 8 + ifdSize + valuesSize;
+        
+        long[] offsets = new long[stripCount];
+        ByteBuffer offsetBuffer = ByteBuffer.wrap(stripOffsets.data);
+        long offset = pixelOffset;
+        for (int strip = 0; strip < stripCount; strip++)
+        {
+            offsets[strip] = offset;
+            offsetBuffer.putInt((int) offset);
+            offset += stripSizes[strip];
+        }
+        if ( offset > 0xffffffffL )
+        {
+            throw new IOException(String.format("%s would exceed 4 GiB", _file.getName()));
+        }
+        
+        ByteBuffer header = ByteBuffer.allocate((int) pixelOffset).order(ByteOrder.BIG_ENDIAN);
+        header.putShort((short) 0x4D4D).putShort((short) 42).putInt(8);
+        header.putShort((short) entries.size());
+        
+        int valueOffset = 8 + ifdSize;
+        for (Entry entry : entries)
+        {
+            header.putShort((short) entry.tag).putShort((short) entry.type).putInt(entry.count);
+            if ( entry.data.length > 4 )
+            {
+                header.putInt(valueOffset);
+                int position = header.position();
+                header.position(valueOffset);
+                header.put(entry.data);
+                header.position(position);
+                valueOffset += (entry.data.length + 1) & ~1;
+            }
+            else
+            {
+                header.put(entry.data);
+                header.position(header.position() + 4 - entry.data.length);
+            }
+        }
+        header.putInt(0); // no next IFD
+        header.rewind();
+        
+        try ( FileChannel channel = FileChannel.open(_file.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE) )
+        {
+            write(channel, header, 0);
+            for (int strip = 0; strip < stripCount; strip++)
+            {
+                ByteBuffer data = strips != null ? strips[strip] : getStrip(pixels, width, height, strip, rowsPerStrip);
+                write(channel, data, offsets[strip]);
+            }
+        }
+        return offset;
+    }
+    
+    /**
+     * Get the number of rows of the strips of an image (the last strip may have less rows)
+     * @param _rowBytes uncompressed size of a row
+     * @param _height
+     */
+    static int getRowsPerStrip(long _rowBytes, int _height)
+    {
+        return (int) Math.max(1, Math.min(_height, STRIP_SIZE / _rowBytes));
+    }
+    
+    static int getStripRows(int _strip, int _rowsPerStrip, int _height)
+    {
+        return Math.min(_rowsPerStrip, _height - _strip * _rowsPerStrip);
+    }
+    
+    /**
+     * Get the big endian bytes of a strip: 8-bit pixels are wrapped, others are converted.
+     * @param _pixels a byte[], short[] or float[] array
+     * @return a buffer positioned at 0
+     */
+    static ByteBuffer getStrip(Object _pixels, int _width, int _height, int _strip, int _rowsPerStrip)
+    {
+        int offset = _strip * _rowsPerStrip * _width;
+        int length = getStripRows(_strip, _rowsPerStrip, _height) * _width;
+        
+        if ( _pixels instanceof byte[] )
+        {
+            return ByteBuffer.wrap((byte[]) _pixels, offset, length).slice();
+        }
+        
+        ByteBuffer result;
+        if ( _pixels instanceof short[] )
+        {
+            result = ByteBuffer.allocate(length * 2).order(ByteOrder.BIG_ENDIAN);
+            result.asShortBuffer().put((short[]) _pixels, offset, length);
+        }
+        else
+        {
+            result = ByteBuffer.allocate(length * 4).order(ByteOrder.BIG_ENDIAN);
+            result.asFloatBuffer().put((float[]) _pixels, offset, length);
+        }
+        return result;
+    }
+    
+    /**
+     * Convert the pixels in strips and compress them, in parallel when a pool is given.
+     * @return the strips, ready to be written
+     */
+    static ByteBuffer[] compressStrips(Object _pixels, int _width, int _height, int _rowsPerStrip, int _stripCount, int _compression, ForkJoinPool _pool)
+    {
+        ByteBuffer[] strips = new ByteBuffer[_stripCount];
+        List<ForkJoinTask<ByteBuffer>> tasks = new ArrayList<>(_stripCount);
+        for (int strip = 0; strip < _stripCount; strip++)
+        {
+            final int index = strip;
+            tasks.add(ForkJoinTask.adapt(() -> compress(getStrip(_pixels, _width, _height, index, _rowsPerStrip), _compression)));
+        }
+        
+        if ( _pool == null || _stripCount == 1 )
+        {
+            for (ForkJoinTask<ByteBuffer> task : tasks)
+            {
+                task.invoke();
+            }
+        }
+        else if ( ForkJoinTask.getPool() == _pool )
+        {
+            // idle workers of the pool steal the strips
+            ForkJoinTask.invokeAll(tasks);
+        }
+        else
+        {
+            for (ForkJoinTask<ByteBuffer> task : tasks)
+            {
+                _pool.execute(task);
+            }
+        }
+        
+        for (int strip = 0; strip < _stripCount; strip++)
+        {
+            strips[strip] = tasks.get(strip).join();
+        }
+        return strips;
+    }
+    
+    /**
+     * Compress a strip or a tile
+     * @param _strip uncompressed bytes (a converted buffer owning its whole array may be used as is)
+     * @param _compression COMPRESSION_DEFLATE or COMPRESSION_LZW
+     * @return the compressed bytes
+     */
+    static ByteBuffer compress(ByteBuffer _strip, int _compression)
+    {
+        byte[] data;
+        if ( _strip.hasArray() && _strip.arrayOffset() == 0 && _strip.remaining() == _strip.array().length )
+        {
+            data = _strip.array(); // converted strip, not shared
+        }
+        else
+        {
+            data = new byte[_strip.remaining()];
+            _strip.duplicate().get(data);
+        }
+        
+        if ( _compression == COMPRESSION_LZW )
+        {
+            return ByteBuffer.wrap(LzwEncoder.encode(data));
+        }
+        
+        // TIFF deflate is a zlib stream
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try
+        {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            while ( !deflater.finished() )
+            {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return ByteBuffer.wrap(out.toByteArray());
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+    
+    private static void write(FileChannel _channel, ByteBuffer _buffer, long _position) throws IOException
+    {
+        while ( _buffer.hasRemaining() )
+        {
+            _channel.write(_buffer, _position + _buffer.position());
+        }
+    }
+    
+    private static Entry shortEntry(int _tag, int _value)
+    {
+        return new Entry(_tag, TYPE_SHORT, 1, ByteBuffer.allocate(2).putShort((short) _value).array());
+    }
+    
+    private static Entry longEntry(int _tag, int _value)
+    {
+        return new Entry(_tag, TYPE_LONG, 1, ByteBuffer.allocate(4).putInt(_value).array());
+    }
+    
+    /**
+     * Convert a LUT to a TIFF color map (reds, greens then blues, 16-bit each)
+     * @param _lut
+     * @param _order byte order of the file
+     */
+    static byte[] createColorMap(LUT _lut, ByteOrder _order)
+    {
+        ByteBuffer result = ByteBuffer.allocate(3 * 256 * 2).order(_order);
+        for (byte value : createLutData(_lut))
+        {
+            // same scaling as ij.io.TiffEncoder
+            result.putShort((short) ((value & 0xff) << 8));
+        }
+        return result.array();
+    }
+    
+    /**
+     * Create ImageJ metadata holding a single LUT: header (magic number, type, count) then the LUT data.
+     * @param _lut
+     * @param _order byte order of the file
+     */
+    static byte[] createMetaData(LUT _lut, ByteOrder _order)
+    {
+        ByteBuffer result = ByteBuffer.allocate(12 + IJ_LUT_SIZE).order(_order);
+        result.putInt(IJ_MAGIC_NUMBER).putInt(IJ_LUTS).putInt(1);
+        result.put(createLutData(_lut));
+        return result.array();
+    }
+    
+    /**
+     * Convert a LUT to the ImageJ metadata format (reds, greens then blues, 8-bit each)
+     */
+    static byte[] createLutData(LUT _lut)
+    {
+        byte[] result = new byte[IJ_LUT_SIZE];
+        byte[] component = new byte[256];
+        _lut.getReds(component);
+        System.arraycopy(component, 0, result, 0, 256);
+        _lut.getGreens(component);
+        System.arraycopy(component, 0, result, 256, 256);
+        _lut.getBlues(component);
+        System.arraycopy(component, 0, result, 512, 256);
+        return result;
+    }
+}
@@ -0,0 +1,818 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Berdal84.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.berdal84.mageek;
+
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+import java.awt.Color;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Write a large image to a tiled BigTIFF file, tile by tile.
+ *
+ * The IFDs are written when the file is created, tiles are appended in the
+ * order they are written (by any thread) and their offsets and byte counts
+ * are written by close(). Tiles can be compressed (deflate or LZW), each one
+ * by the thread writing it. Only a few tiles are in memory at a time, images
+ * can have more than 2^31 pixels.
+ *
+ * The file can be pyramidal: reduced resolutions (each one half the size of
+ * the previous one) are stored in SubIFDs of the full resolution image, and
+ * the description is OME-XML, so the file is an OME-TIFF pyramid that
+ * Bio-Formats reads with its resolutions. They are built from the tiles
+ * written, the image is never read back: a reduced tile is written as soon as
+ * all the tiles it covers have been written. Tiles written in Z-order
+ * (@see getTileOrder()) keep the reduced tiles waiting for them few, whatever
+ * the width of the image.
+ *
+ * Like TiffWriter, 8-bit images are palette images and the LUT of 16-bit and
+ * 32-bit images is stored in the ImageJ metadata. The display range of 16-bit
+ * and 32-bit images without reduced resolutions is computed from the tiles
+ * and written by close().
+ */
+class TiledTiffWriter implements Closeable
+{
+    /* TIFF tags (in addition to TiffWriter's ones) */
+    static final int TAG_NEW_SUBFILE_TYPE = 254;
+    static final int TAG_COMPRESSION = 259;
+    static final int TAG_PLANAR_CONFIGURATION = 284;
+    static final int TAG_TILE_WIDTH = 322;
+    static final int TAG_TILE_LENGTH = 323;
+    static final int TAG_TILE_OFFSETS = 324;
+    static final int TAG_TILE_BYTE_COUNTS = 325;
+    static final int TAG_SUB_IFDS = 330;
+    
+    /* BigTIFF 64-bit unsigned integer and IFD offset types */
+    static final int TYPE_LONG8 = 16;
+    static final int TYPE_IFD8 = 18;
+    
+    /* Space reserved for the ImageJ image description, patched by close() */
+    private static final int DESCRIPTION_SIZE = 128;
+    
+    /**
+     * A BigTIFF IFD entry, the value is inlined when it fits in 8 bytes.
+     */
+    private static class Entry
+    {
+        final int tag;
+        final int type;
+        final long count;
+        final byte[] data;
+        
+        /* Position of the value in the file, once the layout is known */
+        long position;
+
+        Entry(int _tag, int _type, long _count, byte[] _data)
+        {
+            tag = _tag;
+            type = _type;
+            count = _count;
+            data = _data;
+        }
+    }
+    
+    /**
+     * A resolution level: its IFD and the position of its tiles.
+     */
+    private static class Level
+    {
+        final int width;
+        final int height;
+        final int tilesX;
+        final int tilesY;
+        final List<Entry> entries = new ArrayList<>();
+        
+        /* Filled as the tiles are written, patched in the file by close() */
+        final byte[] tileOffsets;
+        final byte[] tileByteCounts;
+        Entry tileOffsetsEntry;
+        Entry tileByteCountsEntry;
+        
+        /* Filled once the layout is known */
+        long ifdOffset;
+        
+        /* Reduced tiles (of this level) waiting for the tiles they cover */
+        final Map<Integer, PendingTile> pending = new HashMap<>();
+
+        Level(int _width, int _height, int _tileSize)
+        {
+            width = _width;
+            height = _height;
+            tilesX = (_width + _tileSize - 1) / _tileSize;
+            tilesY = (_height + _tileSize - 1) / _tileSize;
+            tileOffsets = new byte[getTileCount() * 8];
+            tileByteCounts = new byte[getTileCount() * 8];
+        }
+        
+        int getTileCount()
+        {
+            return tilesX * tilesY;
+        }
+        
+        long getIfdSize()
+        {
+            return 8 + entries.size() * 20L + 8;
+        }
+        
+        long getValuesSize()
+        {
+            long size = 0;
+            for (Entry entry : entries)
+            {
+                if ( entry.data.length > 8 )
+                {
+                    size += (entry.data.length + 1) & ~1; // word aligned
+                }
+            }
+            return size;
+        }
+    }
+    
+    /**
+     * A reduced tile being built, each tile it covers fills a quarter of it.
+     */
+    private static class PendingTile
+    {
+        final Object pixels; // same type as the file's pixels
+        int remaining;
+
+        PendingTile(Object _pixels, int _remaining)
+        {
+            pixels = _pixels;
+            remaining = _remaining;
+        }
+    }
+    
+    private final FileChannel channel;
+    private final int tileSize;
+    private final int bytesPerSample;
+    private final int compression;
+    private final Level[] levels;
+    
+    /* Size of an uncompressed tile in bytes */
+    private final long tileBytes;
+    
+    /* Offset of the ImageJ image description (-1 when there is none to patch) */
+    private long descriptionOffset = -1;
+    
+    /* Display range of the tiles written */
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    
+    /* End of the file, where the next tile is written */
+    private long end;
+
+    /**
+     * Create the file and write its header
+     * @param _file
+     * @param _width
+     * @param _height
+     * @param _tileSize width and height of the tiles (multiple of 16)
+     * @param _bitDepth 8, 16 or 32 (float)
+     * @param _lut 
+     * @throws IOException 
+     */
+    TiledTiffWriter(File _file, int _width, int _height, int _tileSize, int _bitDepth, LUT _lut) throws IOException
+    {
+        this(_file, _width, _height, _tileSize, _bitDepth, _lut, 1, TiffWriter.COMPRESSION_NONE);
+    }
+    
+    /**
+     * Create a file, pyramidal or not, and write its header
+     * @param _file
+     * @param _width
+     * @param _height
+     * @param _tileSize width and height of the tiles (multiple of 16)
+     * @param _bitDepth 8, 16 or 32 (float)
+     * @param _lut 
+     * @param _levelCount number of resolutions, including the full one (@see getLevelCount())
+     * @param _compression one of TiffWriter.COMPRESSION_*
+     * @throws IOException 
+     */
+    TiledTiffWriter(File _file, int _width, int _height, int _tileSize, int _bitDepth, LUT _lut, int _levelCount, int _compression) throws IOException
+    {
+        if ( _bitDepth != 8 && _bitDepth != 16 && _bitDepth != 32 )
+        {
+            throw new IllegalArgumentException(String.format("Unsupported bit depth: %d", _bitDepth));
+        }
+        
+        tileSize = _tileSize;
+        bytesPerSample = _bitDepth / 8;
+        compression = _compression;
+        tileBytes = (long) _tileSize * _tileSize * bytesPerSample;
+        
+        levels = new Level[_levelCount];
+        for (int level = 0; level < _levelCount; level++)
+        {
+            levels[level] = new Level(
+                    Math.max(1, (int) ((_width + (1L << level) - 1) >> level)),
+                    Math.max(1, (int) ((_height + (1L << level) - 1) >> level)),
+                    _tileSize);
+        }
+        
+        Entry description = null;
+        byte[] subIfds = new byte[(_levelCount - 1) * 8];
+        for (int i = 0; i < _levelCount; i++)
+        {
+            Level level = levels[i];
+            List<Entry> entries = level.entries;
+            if ( i > 0 )
+            {
+                entries.add(new Entry(TAG_NEW_SUBFILE_TYPE, TiffWriter.TYPE_LONG, 1, ByteBuffer.allocate(4).putInt(1).array())); // reduced resolution
+            }
+            entries.add(longEntry(TiffWriter.TAG_IMAGE_WIDTH, level.width));
+            entries.add(longEntry(TiffWriter.TAG_IMAGE_LENGTH, level.height));
+            entries.add(shortEntry(TiffWriter.TAG_BITS_PER_SAMPLE, _bitDepth));
+            entries.add(shortEntry(TAG_COMPRESSION, TiffWriter.COMPRESSION_CODES[_compression]));
+            entries.add(shortEntry(TiffWriter.TAG_PHOTOMETRIC_INTERPRETATION, _bitDepth == 8 ? 3 : 1));
+            if ( i == 0 && _levelCount > 1 )
+            {
+                // Bio-Formats only reads the SubIFD resolutions of OME-TIFF files
+                String xml = OmeTiffWriter.createDescription(getImageName(_file), _bitDepth, _width, _height, new Color(_lut.getRGB(255)));
+                byte[] data = (xml + "\0").getBytes(StandardCharsets.UTF_8);
+                entries.add(new Entry(TiffWriter.TAG_IMAGE_DESCRIPTION, TiffWriter.TYPE_ASCII, data.length, data));
+            }
+            else if ( i == 0 && _bitDepth != 8 )
+            {
+                description = new Entry(TiffWriter.TAG_IMAGE_DESCRIPTION, TiffWriter.TYPE_ASCII, DESCRIPTION_SIZE, createDescription());
+                entries.add(description);
+            }
+            entries.add(shortEntry(TiffWriter.TAG_SAMPLES_PER_PIXEL, 1));
+            entries.add(shortEntry(TAG_PLANAR_CONFIGURATION, 1));
+            if ( _bitDepth == 8 )
+            {
+                entries.add(new Entry(TiffWriter.TAG_COLOR_MAP, TiffWriter.TYPE_SHORT, 3 * 256, TiffWriter.createColorMap(_lut, ByteOrder.BIG_ENDIAN)));
+            }
+            entries.add(longEntry(TAG_TILE_WIDTH, _tileSize));
+            entries.add(longEntry(TAG_TILE_LENGTH, _tileSize));
+            level.tileOffsetsEntry = new Entry(TAG_TILE_OFFSETS, TYPE_LONG8, level.getTileCount(), level.tileOffsets);
+            entries.add(level.tileOffsetsEntry);
+            level.tileByteCountsEntry = new Entry(TAG_TILE_BYTE_COUNTS, TYPE_LONG8, level.getTileCount(), level.tileByteCounts);
+            entries.add(level.tileByteCountsEntry);
+            if ( i == 0 && _levelCount > 1 )
+            {
+                entries.add(new Entry(TAG_SUB_IFDS, TYPE_IFD8, _levelCount - 1, subIfds));
+            }
+            if ( _bitDepth == 32 )
+            {
+                entries.add(shortEntry(TiffWriter.TAG_SAMPLE_FORMAT, 3)); // IEEE float
+            }
+            if ( i == 0 && _bitDepth != 8 )
+            {
+                byte[] metaData = TiffWriter.createMetaData(_lut, ByteOrder.BIG_ENDIAN);
+                ByteBuffer counts = ByteBuffer.allocate(8);
+                counts.putInt(metaData.length - TiffWriter.IJ_LUT_SIZE).putInt(TiffWriter.IJ_LUT_SIZE);
+                entries.add(new Entry(TiffWriter.TAG_META_DATA_BYTE_COUNTS, TiffWriter.TYPE_LONG, 2, counts.array()));
+                entries.add(new Entry(TiffWriter.TAG_META_DATA, TiffWriter.TYPE_UNDEFINED, metaData.length, metaData));
+            }
+        }
+        
+        // Layout: header, IFD and values of each level, then the tiles as they are written.
+        long offset = 16;
+        ByteBuffer subIfdOffsets = ByteBuffer.wrap(subIfds);
+        for (Level level : levels)
+        {
+            level.ifdOffset = offset;
+            offset += level.getIfdSize() + level.getValuesSize();
+            if ( level != levels[0] )
+            {
+                subIfdOffsets.putLong(level.ifdOffset);
+            }
+        }
+        if ( offset > Integer.MAX_VALUE )
+        {
+            throw new IOException("Too many tiles");
+        }
+        end = offset;
+        
+        ByteBuffer header = ByteBuffer.allocate((int) offset).order(ByteOrder.BIG_ENDIAN);
+        header.putShort((short) 0x4D4D).putShort((short) 43).putShort((short) 8).putShort((short) 0).putLong(16);
+        
+        for (Level level : levels)
+        {
+            header.position((int) level.ifdOffset);
+            header.putLong(level.entries.size());
+            long valueOffset = level.ifdOffset + level.getIfdSize();
+            for (Entry entry : level.entries)
+            {
+                header.putShort((short) entry.tag).putShort((short) entry.type).putLong(entry.count);
+                if ( entry.data.length > 8 )
+                {
+                    entry.position = valueOffset;
+                    header.putLong(valueOffset);
+                    int position = header.position();
+                    header.position((int) valueOffset);
+                    header.put(entry.data);
+                    header.position(position);
+                    valueOffset += (entry.data.length + 1) & ~1;
+                }
+                else
+                {
+                    entry.position = header.position();
+                    header.put(entry.data);
+                    header.position(header.position() + 8 - entry.data.length);
+                }
+            }
+            header.putLong(0); // no next IFD, reduced resolutions are SubIFDs
+        }
+        header.rewind();
+        
+        if ( description != null )
+        {
+            descriptionOffset = description.position;
+        }
+        
+        channel = FileChannel.open(_file.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        write(header, 0);
+    }
+    
+    /**
+     * Get the number of levels of a pyramid whose smallest level fits in a tile.
+     */
+    static int getLevelCount(int _width, int _height, int _tileSize)
+    {
+        int count = 1;
+        long size = Math.max(_width, _height);
+        while ( size > _tileSize )
+        {
+            size = (size + 1) / 2;
+            count++;
+        }
+        return count;
+    }
+    
+    /**
+     * Get the tiles of a grid in Z-order (each 2x2 block of tiles, then each
+     * 2x2 block of blocks, etc.), the reduced tiles of a pyramid are then
+     * completed as soon as possible.
+     * @param _tilesX
+     * @param _tilesY
+     * @return the tile indices (row * _tilesX + column)
+     */
+    static int[] getTileOrder(int _tilesX, int _tilesY)
+    {
+        int[] order = new int[_tilesX * _tilesY];
+        int size = 1;
+        while ( size < Math.max(_tilesX, _tilesY) )
+        {
+            size *= 2;
+        }
+        addTiles(order, 0, 0, 0, size, _tilesX, _tilesY);
+        return order;
+    }
+    
+    /**
+     * Add the tiles of a square block to a Z-order
+     * @return the number of tiles in the order
+     */
+    private static int addTiles(int[] _order, int _count, int _x, int _y, int _size, int _tilesX, int _tilesY)
+    {
+        if ( _x >= _tilesX || _y >= _tilesY )
+        {
+            return _count;
+        }
+        if ( _size == 1 )
+        {
+            _order[_count] = _y * _tilesX + _x;
+            return _count + 1;
+        }
+        int half = _size / 2;
+        _count = addTiles(_order, _count, _x, _y, half, _tilesX, _tilesY);
+        _count = addTiles(_order, _count, _x + half, _y, half, _tilesX, _tilesY);
+        _count = addTiles(_order, _count, _x, _y + half, half, _tilesX, _tilesY);
+        return addTiles(_order, _count, _x + half, _y + half, half, _tilesX, _tilesY);
+    }
+    
+    /**
+     * Write an image to a pyramidal tiled file (the pyramid is built while writing the tiles).
+     * @param _file
+     * @param _p 8-bit, 16-bit or 32-bit image
+     * @param _lut
+     * @param _tileSize
+     * @param _compression one of TiffWriter.COMPRESSION_*
+     * @param _pool the pool writing the tiles (when null, they are written by the caller)
+     * @return the number of bytes written
+     * @throws IOException 
+     */
+    static long write(File _file, ImageProcessor _p, LUT _lut, int _tileSize, int _compression, ForkJoinPool _pool) throws IOException
+    {
+        int width = _p.getWidth();
+        int height = _p.getHeight();
+        int levelCount = getLevelCount(width, height, _tileSize);
+        try (TiledTiffWriter writer = new TiledTiffWriter(_file, width, height, _tileSize, _p.getBitDepth(), _lut, levelCount, _compression))
+        {
+            int tilesX = (width + _tileSize - 1) / _tileSize;
+            int tilesY = (height + _tileSize - 1) / _tileSize;
+            List<ForkJoinTask<Void>> tasks = new ArrayList<>(tilesX * tilesY);
+            for (int tile : getTileOrder(tilesX, tilesY))
+            {
+                tasks.add(ForkJoinTask.adapt(() ->
+                {
+                    writer.writeImageTile(tile % tilesX, tile / tilesX, _p);
+                    return null;
+                }));
+            }
+            
+            try
+            {
+                if ( _pool == null || tasks.size() == 1 )
+                {
+                    for (ForkJoinTask<Void> task : tasks)
+                    {
+                        task.invoke();
+                    }
+                }
+                else if ( ForkJoinTask.getPool() == _pool )
+                {
+                    // idle workers of the pool steal the tiles
+                    ForkJoinTask.invokeAll(tasks);
+                }
+                else
+                {
+                    for (ForkJoinTask<Void> task : tasks)
+                    {
+                        _pool.execute(task);
+                    }
+                    for (ForkJoinTask<Void> task : tasks)
+                    {
+                        task.join();
+                    }
+                }
+            }
+            catch (RuntimeException ex)
+            {
+                // tasks wrap the IOException (and join() may wrap it again)
+                for (Throwable cause = ex.getCause(); cause != null; cause = cause.getCause())
+                {
+                    if ( cause instanceof IOException )
+                    {
+                        throw (IOException) cause;
+                    }
+                }
+                throw ex;
+            }
+        }
+        return _file.length();
+    }
+    
+    int getTileSize()
+    {
+        return tileSize;
+    }
+    
+    /**
+     * Write a tile (and the reduced tiles it completes), thread safe.
+     * @param _tileX column of the tile
+     * @param _tileY row of the tile
+     * @param _tile pixels of the tile, smaller than the tile size for the last column/row
+     * @throws IOException 
+     */
+    void writeTile(int _tileX, int _tileY, ImageProcessor _tile) throws IOException
+    {
+        Object pixels = _tile.getPixels();
+        updateRange(pixels);
+        writeTile(0, _tileX, _tileY, pixels, _tile.getWidth(), _tile.getHeight());
+    }
+    
+    /**
+     * Write a tile of an image (thread safe, the image is only read).
+     * @param _tileX column of the tile
+     * @param _tileY row of the tile
+     * @param _image the whole image
+     * @throws IOException 
+     */
+    private void writeImageTile(int _tileX, int _tileY, ImageProcessor _image) throws IOException
+    {
+        int x = _tileX * tileSize;
+        int y = _tileY * tileSize;
+        int w = Math.min(tileSize, _image.getWidth() - x);
+        int h = Math.min(tileSize, _image.getHeight() - y);
+        
+        Object pixels = newPixels(w * h);
+        for (int row = 0; row < h; row++)
+        {
+            System.arraycopy(_image.getPixels(), (y + row) * _image.getWidth() + x, pixels, row * w, w);
+        }
+        updateRange(pixels);
+        writeTile(0, _tileX, _tileY, pixels, w, h);
+    }
+    
+    /**
+     * Update the display range with the pixels of a tile (only needed by the ImageJ description)
+     */
+    private void updateRange(Object _pixels)
+    {
+        if ( descriptionOffset < 0 )
+        {
+            return;
+        }
+        
+        double tileMin = Double.POSITIVE_INFINITY;
+        double tileMax = Double.NEGATIVE_INFINITY;
+        if ( _pixels instanceof short[] )
+        {
+            for (short value : (short[]) _pixels)
+            {
+                tileMin = Math.min(tileMin, value & 0xffff);
+                tileMax = Math.max(tileMax, value & 0xffff);
+            }
+        }
+        else
+        {
+            for (float value : (float[]) _pixels)
+            {
+                // like ImageJ, infinite and NaN values are ignored
+                if ( !Float.isInfinite(value) && !Float.isNaN(value) )
+                {
+                    tileMin = Math.min(tileMin, value);
+                    tileMax = Math.max(tileMax, value);
+                }
+            }
+        }
+        
+        synchronized (this)
+        {
+            min = Math.min(min, tileMin);
+            max = Math.max(max, tileMax);
+        }
+    }
+    
+    /**
+     * Write a tile of a given level, then reduce it into the tile of the next level.
+     * @param _pixels byte[], short[] or float[] of _w x _h pixels
+     */
+    private void writeTile(int _level, int _tileX, int _tileY, Object _pixels, int _w, int _h) throws IOException
+    {
+        // edge tiles are padded with zeros
+        ByteBuffer buffer = ByteBuffer.allocate((int) tileBytes).order(ByteOrder.BIG_ENDIAN);
+        ShortBuffer shorts = buffer.asShortBuffer();
+        FloatBuffer floats = buffer.asFloatBuffer();
+        for (int y = 0; y < _h; y++)
+        {
+            int position = y * tileSize;
+            switch (bytesPerSample)
+            {
+                case 1:
+                    buffer.position(position);
+                    buffer.put((byte[]) _pixels, y * _w, _w);
+                    break;
+                case 2:
+                    shorts.position(position);
+                    shorts.put((short[]) _pixels, y * _w, _w);
+                    break;
+                default:
+                    floats.position(position);
+                    floats.put((float[]) _pixels, y * _w, _w);
+                    break;
+            }
+        }
+        buffer.clear();
+        
+        ByteBuffer data = compression == TiffWriter.COMPRESSION_NONE ? buffer : TiffWriter.compress(buffer, compression);
+        
+        Level level = levels[_level];
+        int tile = _tileY * level.tilesX + _tileX;
+        long offset;
+        synchronized (this)
+        {
+            offset = end;
+            end += data.remaining();
+            ByteBuffer.wrap(level.tileOffsets).putLong(tile * 8, offset);
+            ByteBuffer.wrap(level.tileByteCounts).putLong(tile * 8, data.remaining());
+        }
+        write(data, offset);
+        
+        if ( _level + 1 < levels.length )
+        {
+            reduce(_level + 1, _tileX, _tileY, _pixels, _w, _h);
+        }
+    }
+    
+    /**
+     * Reduce a tile (2x2 mean) into a quarter of the tile covering it in a given level.
+     * The reduced tile is written once all its quarters are filled.
+     */
+    private void reduce(int _level, int _childX, int _childY, Object _pixels, int _w, int _h) throws IOException
+    {
+        Level level = levels[_level];
+        Level childLevel = levels[_level - 1];
+        int tileX = _childX / 2;
+        int tileY = _childY / 2;
+        int tile = tileY * level.tilesX + tileX;
+        
+        PendingTile pending;
+        synchronized (level.pending)
+        {
+            pending = level.pending.get(tile);
+            if ( pending == null )
+            {
+                int childCount = (Math.min(2 * tileX + 1, childLevel.tilesX - 1) - 2 * tileX + 1)
+                               * (Math.min(2 * tileY + 1, childLevel.tilesY - 1) - 2 * tileY + 1);
+                pending = new PendingTile(newPixels(tileSize * tileSize), childCount);
+                level.pending.put(tile, pending);
+            }
+        }
+        
+        // each child fills its own quarter, no lock needed
+        int offsetX = (_childX % 2) * tileSize / 2;
+        int offsetY = (_childY % 2) * tileSize / 2;
+        for (int y = 0; y < _h; y += 2)
+        {
+            for (int x = 0; x < _w; x += 2)
+            {
+                float sum = 0;
+                int count = 0;
+                for (int dy = 0; dy < 2 && y + dy < _h; dy++)
+                {
+                    for (int dx = 0; dx < 2 && x + dx < _w; dx++)
+                    {
+                        sum += getValue(_pixels, (y + dy) * _w + x + dx);
+                        count++;
+                    }
+                }
+                setValue(pending.pixels, (offsetY + y / 2) * tileSize + offsetX + x / 2, sum / count);
+            }
+        }
+        
+        synchronized (pending)
+        {
+            if ( --pending.remaining > 0 )
+            {
+                return;
+            }
+        }
+        synchronized (level.pending)
+        {
+            level.pending.remove(tile);
+        }
+        
+        int w = Math.min(tileSize, level.width - tileX * tileSize);
+        int h = Math.min(tileSize, level.height - tileY * tileSize);
+        writeTile(_level, tileX, tileY, crop(pending.pixels, w, h), w, h);
+    }
+    
+    private float getValue(Object _pixels, int _index)
+    {
+        switch (bytesPerSample)
+        {
+            case 1:
+                return ((byte[]) _pixels)[_index] & 0xff;
+            case 2:
+                return ((short[]) _pixels)[_index] & 0xffff;
+            default:
+                return ((float[]) _pixels)[_index];
+        }
+    }
+    
+    /* Integer values are rounded */
+    private void setValue(Object _pixels, int _index, float _value)
+    {
+        switch (bytesPerSample)
+        {
+            case 1:
+                ((byte[]) _pixels)[_index] = (byte) Math.round(_value);
+                break;
+            case 2:
+                ((short[]) _pixels)[_index] = (short) Math.round(_value);
+                break;
+            default:
+                ((float[]) _pixels)[_index] = _value;
+                break;
+        }
+    }
+    
+    /**
+     * Create a pixel array of the type of the file
+     */
+    private Object newPixels(int _length)
+    {
+        switch (bytesPerSample)
+        {
+            case 1:  return new byte[_length];
+            case 2:  return new short[_length];
+            default: return new float[_length];
+        }
+    }
+    
+    /**
+     * Get the w x h top left pixels of a reduced tile.
+     */
+    private Object crop(Object _pixels, int _w, int _h)
+    {
+        if ( _w == tileSize )
+        {
+            return _pixels; // rows are contiguous, the extra rows are ignored
+        }
+        Object pixels = newPixels(_w * _h);
+        for (int y = 0; y < _h; y++)
+        {
+            System.arraycopy(_pixels, y * tileSize, pixels, y * _w, _w);
+        }
+        return pixels;
+    }
+    
+    /**
+     * Write the tile offsets and byte counts, the display range, and close the file
+     * @throws IOException 
+     */
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            for (Level level : levels)
+            {
+                write(ByteBuffer.wrap(level.tileOffsets), level.tileOffsetsEntry.position);
+                write(ByteBuffer.wrap(level.tileByteCounts), level.tileByteCountsEntry.position);
+            }
+            if ( descriptionOffset >= 0 && min <= max )
+            {
+                write(ByteBuffer.wrap(createDescription()), descriptionOffset);
+            }
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+    
+    /**
+     * Create the ImageJ image description, padded with zeros to DESCRIPTION_SIZE
+     */
+    private byte[] createDescription()
+    {
+        String description = min <= max
+                ? String.format("ImageJ=1.53\nmin=%s\nmax=%s\n", min, max)
+                : "ImageJ=1.53\n";
+        byte[] result = new byte[DESCRIPTION_SIZE];
+        byte[] text = description.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(text, 0, result, 0, Math.min(text.length, DESCRIPTION_SIZE - 1));
+        return result;
+    }
+    
+    /**
+     * Get the name of the image stored in a file: the file name without its extension.
+     */
+    private static String getImageName(File _file)
+    {
+        return _file.getName().replaceFirst("\\.part$", "").replaceFirst("\\.tiff?$", "");
+    }
+    
+    private void write(ByteBuffer _buffer, long _position) throws IOException
+    {
+        while ( _buffer.hasRemaining() )
+        {
+            channel.write(_buffer, _position + _buffer.position());
+        }
+    }
+    
+    private static Entry shortEntry(int _tag, int _value)
+    {
+        return new Entry(_tag, TiffWriter.TYPE_SHORT, 1, ByteBuffer.allocate(2).putShort((short) _value).array());
+    }
+    
+    private static Entry longEntry(int _tag, int _value)
+    {
+        return new Entry(_tag, TiffWriter.TYPE_LONG, 1, ByteBuffer.allocate(4).putInt(_value).array());
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Berdal84.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.berdal84.mageek;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Projection kernels for 16-bit slices using SIMD instructions (Java Vector API).
+ *
+ * The implementation (VectorKernelsImpl) lives in src/main/java17, it is only
+ * compiled by a JDK 17+ (vector-api profile) and needs the jdk.incubator.vector
+ * module at runtime (--add-modules jdk.incubator.vector). When one of them is
+ * missing, get() returns null and the scalar loops of ProjectionAccumulator
+ * are used.
+ */
+interface VectorKernels
+{
+    /**
+     * For each pixel: _accumulator[i] += unsigned(_pixels[i])
+     * @param _pixels
+     * @param _accumulator
+     * @param _length 
+     */
+    void sum(short[] _pixels, float[] _accumulator, int _length);
+
+    /**
+     * For each pixel: _accumulator[i] = max(_accumulator[i], unsigned(_pixels[i]))
+     * @param _pixels
+     * @param _accumulator
+     * @param _length 
+     */
+    void max(short[] _pixels, float[] _accumulator, int _length);
+
+    /**
+     * Get the SIMD kernels if they are available on this JVM.
+     * @return the kernels, or null if they are not available.
+     */
+    static VectorKernels get()
+    {
+        return Loader.INSTANCE;
+    }
+
+    /**
+     * Loads the implementation once, the first time get() is called.
+     */
+    static final class Loader
+    {
+        static final VectorKernels INSTANCE = load();
+
+        private static VectorKernels load()
+        {
+            try
+            {
+                Class<?> implementation = Class.forName("com.berdal84.mageek.VectorKernelsImpl");
+                return (VectorKernels) implementation.getDeclaredConstructor().newInstance();
+            }
+            catch (ReflectiveOperationException | LinkageError ex)
+            {
+                Logger.getLogger(VectorKernels.class.getName()).log(
+                        Level.INFO,
+                        "Java Vector API not available, projections will use scalar kernels ({0})",
+                        ex.toString());
+                return null;
+            }
+        }
+    }
+}
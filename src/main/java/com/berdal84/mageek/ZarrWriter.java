@@ -0,0 +1,240 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Berdal84.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.berdal84.mageek;
+
+import ij.process.ImageProcessor;
+import java.awt.Color;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+/**
+ * Write projections to a Zarr (v2) image, as described by OME-NGFF.
+ *
+ * An image is a directory holding a single resolution array "0" of shape
+ * (channel, y, x), chunked by (1, chunkSize, chunkSize). Each chunk is a zlib
+ * compressed file written independently, chunks can then be written
+ * concurrently by any thread. The metadata (shape, type and the channel
+ * colors) is written once all the channels are known.
+ */
+class ZarrWriter
+{
+    /* Name of the full resolution array in the image directory */
+    static final String ARRAY = "0";
+    
+    /* zlib compression level of the chunks */
+    private static final int COMPRESSION_LEVEL = 6;
+    
+    private ZarrWriter()
+    {
+    }
+    
+    /**
+     * Get the number of chunks along x and y of a channel.
+     */
+    static int getChunkCount(int _size, int _chunkSize)
+    {
+        return (_size + _chunkSize - 1) / _chunkSize;
+    }
+    
+    /**
+     * Compress and write a chunk of a channel.
+     * Edge chunks are padded with zeros, Zarr chunks all have the same size.
+     * @param _image image directory
+     * @param _channel channel index
+     * @param _chunkX column of the chunk
+     * @param _chunkY row of the chunk
+     * @param _p the whole channel (byte, short or float processor)
+     * @param _chunkSize
+     * @return the number of bytes written
+     * @throws IOException 
+     */
+    static long writeChunk(File _image, int _channel, int _chunkX, int _chunkY, ImageProcessor _p, int _chunkSize) throws IOException
+    {
+        int width = _p.getWidth();
+        int height = _p.getHeight();
+        int bytesPerSample = getBitDepth(_p) / 8;
+        int x0 = _chunkX * _chunkSize;
+        int y0 = _chunkY * _chunkSize;
+        int w = Math.min(_chunkSize, width - x0);
+        int h = Math.min(_chunkSize, height - y0);
+        
+        ByteBuffer buffer = ByteBuffer.allocate(_chunkSize * _chunkSize * bytesPerSample).order(ByteOrder.BIG_ENDIAN);
+        ShortBuffer shorts = buffer.asShortBuffer();
+        FloatBuffer floats = buffer.asFloatBuffer();
+        Object pixels = _p.getPixels();
+        for (int y = 0; y < h; y++)
+        {
+            int source = (y0 + y) * width + x0;
+            int position = y * _chunkSize;
+            switch (bytesPerSample)
+            {
+                case 1:
+                    buffer.position(position);
+                    buffer.put((byte[]) pixels, source, w);
+                    break;
+                case 2:
+                    shorts.position(position);
+                    shorts.put((short[]) pixels, source, w);
+                    break;
+                default:
+                    floats.position(position);
+                    floats.put((float[]) pixels, source, w);
+                    break;
+            }
+        }
+        
+        byte[] compressed = compress(buffer.array());
+        File chunk = new File(new File(_image, ARRAY), String.format("%d.%d.%d", _channel, _chunkY, _chunkX));
+        Files.write(chunk.toPath(), compressed);
+        return compressed.length;
+    }
+    
+    /**
+     * Write the group and array metadata of an image.
+     * @param _image image directory
+     * @param _name image name
+     * @param _width
+     * @param _height
+     * @param _bitDepth 8, 16 or 32 (float)
+     * @param _chunkSize
+     * @param _colors color of each channel
+     * @param _ranges display range (min, max) of each channel
+     * @return the number of bytes written
+     * @throws IOException 
+     */
+    static long writeMetadata(File _image, String _name, int _width, int _height, int _bitDepth, int _chunkSize, Color[] _colors, double[][] _ranges) throws IOException
+    {
+        int channelCount = _colors.length;
+        String dtype = _bitDepth == 8 ? "|u1" : _bitDepth == 16 ? ">u2" : ">f4";
+        
+        String zarray = String.format(
+                "{\n"
+                + "  \"zarr_format\": 2,\n"
+                + "  \"shape\": [%d, %d, %d],\n"
+                + "  \"chunks\": [1, %d, %d],\n"
+                + "  \"dtype\": \"%s\",\n"
+                + "  \"compressor\": {\"id\": \"zlib\", \"level\": %d},\n"
+                + "  \"fill_value\": 0,\n"
+                + "  \"order\": \"C\",\n"
+                + "  \"filters\": null\n"
+                + "}\n",
+                channelCount, _height, _width, _chunkSize, _chunkSize, dtype, COMPRESSION_LEVEL);
+        
+        StringBuilder channels = new StringBuilder();
+        for (int channel = 0; channel < channelCount; channel++)
+        {
+            Color color = _colors[channel];
+            channels.append(String.format(Locale.ROOT,
+                    "%s      {\"label\": \"channel_%d\", \"color\": \"%02X%02X%02X\", \"active\": true,"
+                    + " \"window\": {\"start\": %s, \"end\": %s, \"min\": %s, \"max\": %s}}",
+                    channel == 0 ? "" : ",\n",
+                    channel, color.getRed(), color.getGreen(), color.getBlue(),
+                    _ranges[channel][0], _ranges[channel][1], _ranges[channel][0], _ranges[channel][1]));
+        }
+        
+        String zattrs = String.format(
+                "{\n"
+                + "  \"multiscales\": [{\n"
+                + "    \"version\": \"0.4\",\n"
+                + "    \"name\": \"%s\",\n"
+                + "    \"axes\": [{\"name\": \"c\", \"type\": \"channel\"}, {\"name\": \"y\", \"type\": \"space\"}, {\"name\": \"x\", \"type\": \"space\"}],\n"
+                + "    \"datasets\": [{\"path\": \"%s\", \"coordinateTransformations\": [{\"type\": \"scale\", \"scale\": [1, 1, 1]}]}]\n"
+                + "  }],\n"
+                + "  \"omero\": {\n"
+                + "    \"name\": \"%s\",\n"
+                + "    \"channels\": [\n%s\n    ]\n"
+                + "  }\n"
+                + "}\n",
+                escape(_name), ARRAY, escape(_name), channels);
+        
+        String zgroup = "{\n  \"zarr_format\": 2\n}\n";
+        
+        return write(new File(_image, ".zgroup"), zgroup)
+             + write(new File(_image, ".zattrs"), zattrs)
+             + write(new File(new File(_image, ARRAY), ".zarray"), zarray);
+    }
+    
+    /**
+     * Get the bit depth of the channels written, RGB is not supported.
+     */
+    static int getBitDepth(ImageProcessor _p)
+    {
+        Object pixels = _p.getPixels();
+        if ( pixels instanceof byte[] )
+        {
+            return 8;
+        }
+        if ( pixels instanceof short[] )
+        {
+            return 16;
+        }
+        if ( pixels instanceof float[] )
+        {
+            return 32;
+        }
+        throw new IllegalArgumentException("RGB images can't be written to Zarr channels");
+    }
+    
+    private static byte[] compress(byte[] _data)
+    {
+        Deflater deflater = new Deflater(COMPRESSION_LEVEL);
+        try
+        {
+            deflater.setInput(_data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(_data.length / 2 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            while ( !deflater.finished() )
+            {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+    
+    private static long write(File _file, String _text) throws IOException
+    {
+        byte[] data = _text.getBytes(StandardCharsets.UTF_8);
+        Files.write(_file.toPath(), data);
+        return data.length;
+    }
+    
+    private static String escape(String _text)
+    {
+        return _text.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
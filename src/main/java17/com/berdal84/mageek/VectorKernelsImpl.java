@@ -0,0 +1,94 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Berdal84.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.berdal84.mageek;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * VectorKernels implemented with the Java Vector API (loaded by VectorKernels.get()).
+ *
+ * Unsigned 16-bit pixels are widened to int lanes, masked, and converted to float
+ * lanes having the preferred width of the CPU (ex: 16 lanes with AVX-512).
+ * Each pixel is computed like the scalar loops do, so results are identical.
+ */
+final class VectorKernelsImpl implements VectorKernels
+{
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INTS = VectorSpecies.of(int.class, FLOATS.vectorShape());
+    private static final VectorSpecies<Short> SHORTS = VectorSpecies.of(short.class, VectorShape.forBitSize(FLOATS.vectorBitSize() / 2));
+
+    public VectorKernelsImpl()
+    {
+        if ( FLOATS.length() < 4 )
+        {
+            throw new UnsupportedOperationException("SIMD registers are too narrow");
+        }
+    }
+
+    /* Load FLOATS.length() unsigned shorts as floats */
+    private static FloatVector load(short[] _pixels, int _index)
+    {
+        IntVector ints = (IntVector) ShortVector.fromArray(SHORTS, _pixels, _index).castShape(INTS, 0);
+        return (FloatVector) ints.and(0xffff).castShape(FLOATS, 0);
+    }
+
+    @Override
+    public void sum(short[] _pixels, float[] _accumulator, int _length)
+    {
+        int i = 0;
+        final int bound = FLOATS.loopBound(_length);
+        for (; i < bound; i += FLOATS.length())
+        {
+            FloatVector.fromArray(FLOATS, _accumulator, i)
+                    .add(load(_pixels, i))
+                    .intoArray(_accumulator, i);
+        }
+        for (; i < _length; i++)
+        {
+            _accumulator[i] += _pixels[i] & 0xffff;
+        }
+    }
+
+    @Override
+    public void max(short[] _pixels, float[] _accumulator, int _length)
+    {
+        int i = 0;
+        final int bound = FLOATS.loopBound(_length);
+        for (; i < bound; i += FLOATS.length())
+        {
+            FloatVector.fromArray(FLOATS, _accumulator, i)
+                    .max(load(_pixels, i))
+                    .intoArray(_accumulator, i);
+        }
+        for (; i < _length; i++)
+        {
+            final int v = _pixels[i] & 0xffff;
+            if ( v > _accumulator[i] ) _accumulator[i] = v;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Berdal84.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.berdal84.mageek;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.plugin.ZProjector;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Check that ProjectionAccumulator gives the same results as ZProjector.run()
+ * for each method of ZProjector.METHODS and each pixel type, with the scalar
+ * loops and, when available on the JVM running the tests, the SIMD kernels.
+ */
+public class ProjectionAccumulatorTest
+{
+    /* ZProjector.run() method keys, indexed like ZProjector.METHODS */
+    private static final String[] PROJECTION_KEYS = { "avg", "max", "min", "sum", "sd", "median" };
+    
+    private static final int WIDTH = 67;
+    private static final int HEIGHT = 31;
+    
+    /* Odd and even slice counts (the median differs) */
+    private static final int[] SLICE_COUNTS = { 4, 5 };
+
+    @Test
+    public void testByte()
+    {
+        testAllMethods(8, false);
+    }
+
+    @Test
+    public void testShort()
+    {
+        testAllMethods(16, false);
+    }
+
+    @Test
+    public void testSigned16Bit()
+    {
+        testAllMethods(16, true);
+    }
+
+    @Test
+    public void testFloat()
+    {
+        testAllMethods(32, false);
+    }
+    
+    private void testAllMethods(int _bitDepth, boolean _signed16Bit)
+    {
+        for (int sliceCount : SLICE_COUNTS)
+        {
+            ImagePlus image = createImage(_bitDepth, _signed16Bit, sliceCount);
+            for (String method : ZProjector.METHODS)
+            {
+                ImageProcessor expected = ZProjector.run(image, PROJECTION_KEYS[ProjectionAccumulator.getMethod(method)]).getProcessor();
+                String context = String.format("%s, %d-bit%s, %d slices", method, _bitDepth, _signed16Bit ? " signed" : "", sliceCount);
+                
+                assertSameProjection(context + ", scalar", expected, project(image, method, _signed16Bit, null));
+                
+                VectorKernels vectorKernels = VectorKernels.get();
+                if ( vectorKernels != null )
+                {
+                    assertSameProjection(context + ", SIMD", expected, project(image, method, _signed16Bit, vectorKernels));
+                }
+            }
+        }
+    }
+    
+    private static ImageProcessor project(ImagePlus _image, String _method, boolean _signed16Bit, VectorKernels _vectorKernels)
+    {
+        ImageStack stack = _image.getStack();
+        ProjectionAccumulator accumulator = new ProjectionAccumulator(_method, stack.getWidth(), stack.getHeight(), _signed16Bit, _vectorKernels);
+        for (int slice = 1; slice <= stack.getSize(); slice++)
+        {
+            accumulator.add(stack.getProcessor(slice));
+        }
+        return accumulator.getResult();
+    }
+    
+    private static void assertSameProjection(String _context, ImageProcessor _expected, ImageProcessor _actual)
+    {
+        assertEquals(_context + ": bit depth", _expected.getBitDepth(), _actual.getBitDepth());
+        assertEquals(_context + ": width", _expected.getWidth(), _actual.getWidth());
+        assertEquals(_context + ": height", _expected.getHeight(), _actual.getHeight());
+        for (int i = 0; i < _expected.getPixelCount(); i++)
+        {
+            float expected = _expected.getf(i);
+            // float rounding may differ (order of the sums, single vs double precision)
+            double delta = 1e-3 + 1e-5 * Math.abs(expected);
+            assertEquals(String.format("%s: pixel %d", _context, i), expected, _actual.getf(i), delta);
+        }
+    }
+    
+    /**
+     * Create a stack of random slices covering the range of the pixel type.
+     */
+    private static ImagePlus createImage(int _bitDepth, boolean _signed16Bit, int _sliceCount)
+    {
+        Random random = new Random(_bitDepth * 31 + _sliceCount);
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        for (int slice = 0; slice < _sliceCount; slice++)
+        {
+            ImageProcessor processor;
+            switch (_bitDepth)
+            {
+                case 8:  processor = new ByteProcessor(WIDTH, HEIGHT); break;
+                case 16: processor = new ShortProcessor(WIDTH, HEIGHT); break;
+                default: processor = new FloatProcessor(WIDTH, HEIGHT); break;
+            }
+            for (int i = 0; i < WIDTH * HEIGHT; i++)
+            {
+                switch (_bitDepth)
+                {
+                    case 8:  processor.setf(i, random.nextInt(256)); break;
+                    case 16: processor.setf(i, random.nextInt(65536)); break;
+                    default: processor.setf(i, (float) (random.nextGaussian() * 1000.0)); break;
+                }
+            }
+            stack.addSlice(processor);
+        }
+        
+        ImagePlus result = new ImagePlus("stack", stack);
+        if ( _signed16Bit )
+        {
+            Calibration calibration = new Calibration(result);
+            calibration.setSigned16BitCalibration();
+            result.setCalibration(calibration);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Berdal84.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.berdal84.mageek;
+
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.io.Opener;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+import ij.process.ShortProcessor;
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Logger;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Check that ImageJ reads the TIFF files written by TiffWriter, with their
+ * LUT and display range.
+ *
+ * benchmarkAgainstAwtPath() compares TiffWriter with the previous output path
+ * (AWT image saved by FileSaver), it only runs with -Dmageek.benchmark=true.
+ */
+public class TiffWriterTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private static final LUT LUT_RED = LUT.createLutFromColor(Color.RED);
+    
+    private static final Logger LOGGER = Logger.getLogger(TiffWriterTest.class.getName());
+
+    @Test
+    public void testByteProcessor() throws IOException
+    {
+        ImageProcessor processor = createProcessor(8, 301, 257);
+        for (int compression = 0; compression < TiffWriter.COMPRESSIONS.length; compression++)
+        {
+            ImagePlus result = writeAndOpen(processor, compression);
+            assertEquals(8, result.getBitDepth());
+            assertArrayEquals((byte[]) processor.getPixels(), (byte[]) result.getProcessor().getPixels());
+        }
+    }
+
+    @Test
+    public void testShortProcessor() throws IOException
+    {
+        ImageProcessor processor = createProcessor(16, 301, 257);
+        for (int compression = 0; compression < TiffWriter.COMPRESSIONS.length; compression++)
+        {
+            ImagePlus result = writeAndOpen(processor, compression);
+            assertEquals(16, result.getBitDepth());
+            assertArrayEquals((short[]) processor.getPixels(), (short[]) result.getProcessor().getPixels());
+        }
+    }
+
+    @Test
+    public void testFloatProcessor() throws IOException
+    {
+        ImageProcessor processor = createProcessor(32, 301, 257);
+        for (int compression = 0; compression < TiffWriter.COMPRESSIONS.length; compression++)
+        {
+            ImagePlus result = writeAndOpen(processor, compression);
+            assertEquals(32, result.getBitDepth());
+            assertArrayEquals((float[]) processor.getPixels(), (float[]) result.getProcessor().getPixels(), 0f);
+        }
+    }
+
+    @Test
+    public void testWidthAbove65535() throws IOException
+    {
+        ImageProcessor processor = createProcessor(8, 70001, 3);
+        ImagePlus result = writeAndOpen(processor, TiffWriter.COMPRESSION_NONE);
+        assertEquals(70001, result.getWidth());
+        assertArrayEquals((byte[]) processor.getPixels(), (byte[]) result.getProcessor().getPixels());
+    }
+
+    @Test
+    public void testLutAndDisplayRange() throws IOException
+    {
+        for (int bitDepth : new int[] { 8, 16, 32 })
+        {
+            ImageProcessor processor = createProcessor(bitDepth, 301, 257);
+            if ( bitDepth != 8 )
+            {
+                // a display range narrower than the pixels, it must not be reset when opening
+                processor.setMinAndMax(processor.getMin() + 10, processor.getMax() / 2);
+            }
+            for (int compression = 0; compression < TiffWriter.COMPRESSIONS.length; compression++)
+            {
+                ImageProcessor result = writeAndOpen(processor, compression).getProcessor();
+                assertLutEquals(LUT_RED, result.getLut());
+                if ( bitDepth != 8 )
+                {
+                    assertEquals(processor.getMin(), result.getMin(), 1e-6);
+                    assertEquals(processor.getMax(), result.getMax(), 1e-6);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void benchmarkAgainstAwtPath() throws IOException
+    {
+        assumeTrue(Boolean.getBoolean("mageek.benchmark"));
+        
+        final int size = 4096;
+        final int iterations = 10;
+        for (int bitDepth : new int[] { 8, 16, 32 })
+        {
+            ImageProcessor processor = createProcessor(bitDepth, size, size);
+            File awtFile = folder.newFile();
+            File rawFile = folder.newFile();
+            
+            // warm up both paths once
+            new FileSaver(new ImagePlus("out", processor.createImage())).saveAsTiff(awtFile.getPath());
+            TiffWriter.write(rawFile, processor, LUT_RED);
+            
+            long awtNanos = 0;
+            long rawNanos = 0;
+            for (int i = 0; i < iterations; i++)
+            {
+                long start = System.nanoTime();
+                new FileSaver(new ImagePlus("out", processor.createImage())).saveAsTiff(awtFile.getPath());
+                awtNanos += System.nanoTime() - start;
+                
+                start = System.nanoTime();
+                TiffWriter.write(rawFile, processor, LUT_RED);
+                rawNanos += System.nanoTime() - start;
+            }
+            
+            LOGGER.info(String.format("%d-bit %dx%d: AWT + FileSaver %.1f ms (%.1f MB/s), TiffWriter %.1f ms (%.1f MB/s)",
+                    bitDepth, size, size,
+                    awtNanos / 1e6 / iterations, awtFile.length() * iterations / (awtNanos / 1e3),
+                    rawNanos / 1e6 / iterations, rawFile.length() * iterations / (rawNanos / 1e3)));
+        }
+    }
+    
+    private static void assertLutEquals(LUT _expected, LUT _actual)
+    {
+        byte[] expected = new byte[256];
+        byte[] actual = new byte[256];
+        _expected.getReds(expected);
+        _actual.getReds(actual);
+        assertArrayEquals("reds", expected, actual);
+        _expected.getGreens(expected);
+        _actual.getGreens(actual);
+        assertArrayEquals("greens", expected, actual);
+        _expected.getBlues(expected);
+        _actual.getBlues(actual);
+        assertArrayEquals("blues", expected, actual);
+    }
+    
+    private ImagePlus writeAndOpen(ImageProcessor _processor, int _compression) throws IOException
+    {
+        File file = folder.newFile(String.format("out_%d_%d.tiff", _processor.getBitDepth(), _compression));
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try
+        {
+            TiffWriter.write(file, _processor, LUT_RED, _compression, pool);
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+        return new Opener().openImage(file.getPath());
+    }
+    
+    /**
+     * Create a processor filled with a gradient and some noise (to be compressible but not trivially).
+     */
+    static ImageProcessor createProcessor(int _bitDepth, int _width, int _height)
+    {
+        Random random = new Random(_bitDepth);
+        ImageProcessor result;
+        switch (_bitDepth)
+        {
+            case 8:  result = new ByteProcessor(_width, _height); break;
+            case 16: result = new ShortProcessor(_width, _height); break;
+            default: result = new FloatProcessor(_width, _height); break;
+        }
+        for (int i = 0; i < _width * _height; i++)
+        {
+            int value = (i % _width) / 7 + (i / _width) % 13 + (random.nextInt(10) == 0 ? random.nextInt(256) : 0);
+            result.setf(i, _bitDepth == 32 ? value * 0.5f : _bitDepth == 16 ? value * 250 : value & 0xff);
+        }
+        result.resetMinAndMax();
+        result.setLut(LUT_RED);
+        return result;
+    }
+}